@@ -24,7 +24,8 @@ LOCAL_PRIVILEGED_MODULE := true
 
 LOCAL_JAVA_LIBRARIES := telephony-common okhttp
 
-LOCAL_SRC_FILES := $(call all-java-files-under, src)
+LOCAL_SRC_FILES := $(call all-java-files-under, src) \
+        $(call all-Iaidl-files-under, src)
 
 LOCAL_RESOURCE_DIR := $(LOCAL_PATH)/res
 LOCAL_AAPT_FLAGS := --auto-add-overlay
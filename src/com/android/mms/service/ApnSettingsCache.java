@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.service;
+
+import android.content.Context;
+import android.database.ContentObserver;
+import android.provider.Telephony;
+import android.telephony.SubscriptionManager;
+import android.telephony.SubscriptionManager.OnSubscriptionsChangedListener;
+import android.text.TextUtils;
+import android.util.ArrayMap;
+
+import com.android.mms.service.exception.ApnException;
+
+import java.io.PrintWriter;
+
+/**
+ * A cache of the APN settings resolved for each subscription ID and APN name, so that requests
+ * do not query the carriers table on every attempt. Lookups which found no valid APN are cached
+ * as well. The whole cache is dropped when the carriers table or the subscriptions change.
+ */
+public class ApnSettingsCache {
+    private static volatile ApnSettingsCache sInstance = new ApnSettingsCache();
+
+    public static ApnSettingsCache getInstance() {
+        return sInstance;
+    }
+
+    // The outcome of loading the APN settings for a key
+    private static class Entry {
+        // The settings, or null if loading failed
+        final ApnSettings mApn;
+        // The reason loading failed
+        final String mError;
+
+        Entry(ApnSettings apn, String error) {
+            mApn = apn;
+            mError = error;
+        }
+    }
+
+    private final ArrayMap<String, Entry> mEntries = new ArrayMap<>();
+    // Incremented on every invalidation, so that loads racing with one are not cached
+    private int mGeneration;
+    // Whether changes are observed, the cache is bypassed until then
+    private boolean mObserving;
+
+    // Metrics
+    private long mHitCount;
+    private long mMissCount;
+    private long mInvalidationCount;
+
+    private final ContentObserver mCarriersObserver = new ContentObserver(null/*handler*/) {
+        @Override
+        public void onChange(boolean selfChange) {
+            invalidate("carriers changed");
+        }
+    };
+
+    private final OnSubscriptionsChangedListener mOnSubscriptionsChangedListener =
+            new OnSubscriptionsChangedListener() {
+        @Override
+        public void onSubscriptionsChanged() {
+            invalidate("subscriptions changed");
+        }
+    };
+
+    /**
+     * Start observing the changes which invalidate the cache
+     *
+     * @param context the context to register observers with
+     */
+    public void init(Context context) {
+        synchronized (this) {
+            if (mObserving) {
+                return;
+            }
+        }
+        context.getContentResolver().registerContentObserver(
+                Telephony.Carriers.CONTENT_URI, true/*notifyForDescendants*/, mCarriersObserver);
+        SubscriptionManager.from(context).addOnSubscriptionsChangedListener(
+                mOnSubscriptionsChangedListener);
+        synchronized (this) {
+            mObserving = true;
+        }
+    }
+
+    /**
+     * Get the APN settings, loading them from the system if not cached
+     *
+     * @param context the context to query the carriers table with
+     * @param apnName the optional APN name to match
+     * @param subId the subscription ID
+     * @param requestId the request ID for logging
+     * @return the APN settings
+     * @throws ApnException if no valid APN can be found
+     */
+    public ApnSettings load(Context context, String apnName, int subId, String requestId)
+            throws ApnException {
+        apnName = apnName != null ? apnName.trim() : null;
+        final String key = subId + "/" + (TextUtils.isEmpty(apnName) ? "" : apnName);
+        final int generation;
+        synchronized (this) {
+            final Entry entry = mObserving ? mEntries.get(key) : null;
+            if (entry != null) {
+                mHitCount++;
+                if (entry.mApn == null) {
+                    throw new ApnException(entry.mError);
+                }
+                return entry.mApn;
+            }
+            mMissCount++;
+            // Nothing is cached until changes are observed
+            generation = mObserving ? mGeneration : -1;
+        }
+        Entry entry;
+        try {
+            entry = new Entry(ApnSettings.load(context, apnName, subId, requestId), null);
+        } catch (ApnException e) {
+            entry = new Entry(null, e.getMessage());
+        }
+        synchronized (this) {
+            if (generation == mGeneration) {
+                mEntries.put(key, entry);
+            }
+        }
+        if (entry.mApn == null) {
+            throw new ApnException(entry.mError);
+        }
+        return entry.mApn;
+    }
+
+    private synchronized void invalidate(String reason) {
+        LogUtil.d("ApnSettingsCache: invalidated, " + reason);
+        mGeneration++;
+        mInvalidationCount++;
+        mEntries.clear();
+    }
+
+    /**
+     * Dump the cache metrics
+     *
+     * @param writer the writer to dump to
+     * @param prefix the prefix of each line
+     */
+    public synchronized void dump(PrintWriter writer, String prefix) {
+        writer.println(prefix + "observing=" + mObserving
+                + " entries=" + mEntries.size()
+                + " hits=" + mHitCount
+                + " misses=" + mMissCount
+                + " invalidations=" + mInvalidationCount);
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.service;
+
+import android.os.SystemClock;
+import android.util.ArrayMap;
+
+import java.io.PrintWriter;
+
+/**
+ * Tracks how long incoming binder calls occupy binder threads, per method, and how many
+ * binder threads are occupied at the same time. A call that blocks on I/O holds one of the
+ * few binder threads of the process, and can hold up every other incoming call.
+ */
+public class BinderOccupancy {
+    private static class MethodStats {
+        long mCallCount;
+        long mTotalMillis;
+        long mMaxMillis;
+    }
+
+    private final ArrayMap<String, MethodStats> mMethodStats = new ArrayMap<>();
+    private int mOccupied;
+    private int mMaxOccupied;
+
+    /**
+     * Called when a binder call starts
+     *
+     * @return the start time to pass to {@link #end(String, long)}
+     */
+    public synchronized long begin() {
+        mOccupied++;
+        if (mOccupied > mMaxOccupied) {
+            mMaxOccupied = mOccupied;
+        }
+        return SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * Called when a binder call ends
+     *
+     * @param method the name of the binder method
+     * @param startTime the start time from {@link #begin()}
+     */
+    public synchronized void end(String method, long startTime) {
+        mOccupied--;
+        final long elapsed = SystemClock.elapsedRealtime() - startTime;
+        MethodStats stats = mMethodStats.get(method);
+        if (stats == null) {
+            stats = new MethodStats();
+            mMethodStats.put(method, stats);
+        }
+        stats.mCallCount++;
+        stats.mTotalMillis += elapsed;
+        if (elapsed > stats.mMaxMillis) {
+            stats.mMaxMillis = elapsed;
+        }
+    }
+
+    /**
+     * Dump the occupancy metrics
+     *
+     * @param writer the writer to dump to
+     * @param prefix the prefix of each line
+     */
+    public synchronized void dump(PrintWriter writer, String prefix) {
+        writer.println(prefix + "occupied=" + mOccupied + " maxOccupied=" + mMaxOccupied);
+        for (int i = 0; i < mMethodStats.size(); i++) {
+            final MethodStats stats = mMethodStats.valueAt(i);
+            writer.println(prefix + mMethodStats.keyAt(i) + ":"
+                    + " calls=" + stats.mCallCount
+                    + " avgMs=" + stats.mTotalMillis / Math.max(1, stats.mCallCount)
+                    + " maxMs=" + stats.mMaxMillis);
+        }
+    }
+}
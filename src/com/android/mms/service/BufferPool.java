@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.service;
+
+import java.io.PrintWriter;
+import java.util.ArrayDeque;
+
+/**
+ * A bounded pool of fixed size byte buffers, used to copy PDUs in chunks without allocating
+ * new buffers for every transfer. Buffers beyond the bound are left to the garbage collector.
+ */
+public class BufferPool {
+    private final int mBufferSize;
+    private final int mMaxPooled;
+    private final ArrayDeque<byte[]> mBuffers = new ArrayDeque<>();
+
+    // Metrics
+    private long mAcquireCount;
+    private long mAllocateCount;
+
+    /**
+     * Constructor
+     *
+     * @param bufferSize the size of each buffer
+     * @param maxPooled the maximum number of buffers kept in the pool
+     */
+    public BufferPool(int bufferSize, int maxPooled) {
+        mBufferSize = bufferSize;
+        mMaxPooled = maxPooled;
+    }
+
+    /**
+     * @return the size of each buffer
+     */
+    public int getBufferSize() {
+        return mBufferSize;
+    }
+
+    /**
+     * Get a buffer from the pool, or allocate a new one if the pool is empty
+     *
+     * @return the buffer, which should be returned with {@link #release(byte[])}
+     */
+    public synchronized byte[] acquire() {
+        mAcquireCount++;
+        final byte[] buffer = mBuffers.pollFirst();
+        if (buffer != null) {
+            return buffer;
+        }
+        mAllocateCount++;
+        return new byte[mBufferSize];
+    }
+
+    /**
+     * Return a buffer to the pool
+     *
+     * @param buffer the buffer from {@link #acquire()}
+     */
+    public synchronized void release(byte[] buffer) {
+        if (buffer != null && buffer.length == mBufferSize && mBuffers.size() < mMaxPooled) {
+            mBuffers.addFirst(buffer);
+        }
+    }
+
+    /**
+     * Dump the pool metrics
+     *
+     * @param writer the writer to dump to
+     * @param prefix the prefix of each line
+     */
+    public synchronized void dump(PrintWriter writer, String prefix) {
+        writer.println(prefix + "bufferSize=" + mBufferSize
+                + " pooled=" + mBuffers.size() + "/" + mMaxPooled
+                + " acquired=" + mAcquireCount
+                + " allocated=" + mAllocateCount);
+    }
+}
@@ -0,0 +1,428 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.service;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.OperationApplicationException;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteException;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.provider.Telephony;
+
+import com.google.android.mms.MmsException;
+import com.google.android.mms.pdu.GenericPdu;
+import com.google.android.mms.pdu.PduPersister;
+import com.google.android.mms.util.SqliteWrapper;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Imports a stream of SMS and MMS messages, e.g. when restoring a backup, with far fewer
+ * provider transactions than importing them one at a time.
+ *
+ * SMS are inserted in batches with a single applyBatch call per batch. MMS PDUs are read and
+ * parsed on the shared import thread pool of the service, a bounded number of messages ahead,
+ * and persisted in order. PduPersister persists each MMS on its own, and its imported columns
+ * are updated right after, so that no MMS is left looking like a new unread message.
+ */
+public class BulkImporter {
+    // Number of provider operations applied in one batch
+    private static final int BATCH_SIZE = 200;
+    // Maximum number of MMS PDUs read ahead of the one being persisted, which bounds the memory
+    // held by parsed PDUs
+    private static final int MAX_PENDING_PDUS = 8;
+
+    /**
+     * A message to import, either an SMS or an MMS PDU in a content URI
+     */
+    public static class Message {
+        // Keys of the message fields in a Bundle passed through IMmsBulkImport
+        public static final String KEY_ADDRESS = "address";
+        public static final String KEY_TYPE = "type";
+        public static final String KEY_TEXT = "text";
+        public static final String KEY_CONTENT_URI = "content_uri";
+        public static final String KEY_MESSAGE_ID = "message_id";
+        public static final String KEY_TIMESTAMP = "timestamp";
+        public static final String KEY_SEEN = "seen";
+        public static final String KEY_READ = "read";
+
+        private final boolean mIsSms;
+        // SMS fields
+        private final String mAddress;
+        private final int mType;
+        private final String mText;
+        // MMS fields
+        private final Uri mContentUri;
+        private final String mMessageId;
+        // In milliseconds for SMS, in seconds for MMS, as the provider stores them
+        private final long mTimestamp;
+        private final boolean mSeen;
+        private final boolean mRead;
+
+        private Message(boolean isSms, String address, int type, String text, Uri contentUri,
+                String messageId, long timestamp, boolean seen, boolean read) {
+            mIsSms = isSms;
+            mAddress = address;
+            mType = type;
+            mText = text;
+            mContentUri = contentUri;
+            mMessageId = messageId;
+            mTimestamp = timestamp;
+            mSeen = seen;
+            mRead = read;
+        }
+
+        /**
+         * Create an SMS to import, with the arguments of SmsManager#importTextMessage
+         */
+        public static Message newSms(String address, int type, String text,
+                long timestampMillis, boolean seen, boolean read) {
+            return new Message(true, address, type, text, null/*contentUri*/,
+                    null/*messageId*/, timestampMillis, seen, read);
+        }
+
+        /**
+         * Create an MMS to import, with the arguments of SmsManager#importMultimediaMessage
+         */
+        public static Message newMms(Uri contentUri, String messageId, long timestampSecs,
+                boolean seen, boolean read) {
+            return new Message(false, null/*address*/, 0/*type*/, null/*text*/, contentUri,
+                    messageId, timestampSecs, seen, read);
+        }
+
+        /**
+         * Create a message to import from its fields in a Bundle. A message with a content URI
+         * is an MMS, any other is an SMS.
+         *
+         * @param bundle the message fields
+         * @return the message to import
+         */
+        public static Message fromBundle(Bundle bundle) {
+            final Uri contentUri = bundle.getParcelable(KEY_CONTENT_URI);
+            if (contentUri != null) {
+                return newMms(contentUri, bundle.getString(KEY_MESSAGE_ID),
+                        bundle.getLong(KEY_TIMESTAMP, -1), bundle.getBoolean(KEY_SEEN),
+                        bundle.getBoolean(KEY_READ));
+            }
+            return newSms(bundle.getString(KEY_ADDRESS), bundle.getInt(KEY_TYPE),
+                    bundle.getString(KEY_TEXT), bundle.getLong(KEY_TIMESTAMP),
+                    bundle.getBoolean(KEY_SEEN), bundle.getBoolean(KEY_READ));
+        }
+    }
+
+    /**
+     * The outcome of an import
+     */
+    public static class Result {
+        // Keys of the outcome in the Bundle returned through IMmsBulkImport
+        public static final String KEY_IMPORTED_COUNT = "imported_count";
+        public static final String KEY_FAILED_COUNT = "failed_count";
+        public static final String KEY_ELAPSED_MILLIS = "elapsed_millis";
+
+        private final int mImported;
+        private final int mFailed;
+        private final long mElapsedMillis;
+
+        private Result(int imported, int failed, long elapsedMillis) {
+            mImported = imported;
+            mFailed = failed;
+            mElapsedMillis = elapsedMillis;
+        }
+
+        public int getImportedCount() {
+            return mImported;
+        }
+
+        public int getFailedCount() {
+            return mFailed;
+        }
+
+        public long getElapsedMillis() {
+            return mElapsedMillis;
+        }
+
+        /**
+         * @return the number of messages processed per second
+         */
+        public long getMessagesPerSecond() {
+            return (mImported + mFailed) * 1000L / Math.max(1, mElapsedMillis);
+        }
+
+        /**
+         * @return the outcome as a Bundle, to return through IMmsBulkImport
+         */
+        public Bundle toBundle() {
+            final Bundle bundle = new Bundle();
+            bundle.putInt(KEY_IMPORTED_COUNT, mImported);
+            bundle.putInt(KEY_FAILED_COUNT, mFailed);
+            bundle.putLong(KEY_ELAPSED_MILLIS, mElapsedMillis);
+            return bundle;
+        }
+
+        @Override
+        public String toString() {
+            return "imported=" + mImported
+                    + " failed=" + mFailed
+                    + " elapsedMs=" + mElapsedMillis
+                    + " messagesPerSec=" + getMessagesPerSecond();
+        }
+    }
+
+    private final MmsService mService;
+    private final Context mContext;
+    private final ExecutorService mParseExecutor;
+    private final String mCreator;
+
+    // Pending SMS inserts, as insert URIs and values
+    private final ArrayList<Uri> mSmsUris = new ArrayList<>();
+    private final ArrayList<ContentValues> mSmsValues = new ArrayList<>();
+    // MMS being read and parsed, in order, with their messages
+    private final ArrayDeque<Future<GenericPdu>> mPendingPdus = new ArrayDeque<>();
+    private final ArrayDeque<Message> mPendingMessages = new ArrayDeque<>();
+
+    private int mImported;
+    private int mFailed;
+
+    /**
+     * Constructor
+     *
+     * @param service the MMS service
+     * @param parseExecutor the executor to read and parse MMS PDUs on, shared across imports
+     * @param creator the package importing the messages
+     */
+    public BulkImporter(MmsService service, ExecutorService parseExecutor, String creator) {
+        mService = service;
+        mContext = service;
+        mParseExecutor = parseExecutor;
+        mCreator = creator;
+    }
+
+    /**
+     * Import messages. This blocks until all messages are imported, and must be called with
+     * the calling identity cleared.
+     *
+     * @param messages the messages to import
+     * @return the outcome of the import
+     */
+    public Result run(Iterator<Message> messages) {
+        final long startTime = SystemClock.elapsedRealtime();
+        try {
+            while (messages.hasNext()) {
+                final Message message = messages.next();
+                if (message.mIsSms) {
+                    addSms(message);
+                } else {
+                    addMms(message);
+                }
+            }
+            while (!mPendingPdus.isEmpty()) {
+                persistNextMms();
+            }
+            flushSms();
+        } finally {
+            // Don't leave PDUs of an aborted import to the shared executor
+            for (Future<GenericPdu> pendingPdu : mPendingPdus) {
+                pendingPdu.cancel(true/*mayInterruptIfRunning*/);
+            }
+        }
+        final Result result = new Result(
+                mImported, mFailed, SystemClock.elapsedRealtime() - startTime);
+        LogUtil.i("BulkImporter: " + result);
+        return result;
+    }
+
+    private void addSms(Message message) {
+        final Uri insertUri = MmsService.getSmsImportUri(message.mType);
+        if (insertUri == null) {
+            LogUtil.e("BulkImporter: invalid message type for importing: " + message.mType);
+            onFailed(1);
+            return;
+        }
+        mSmsUris.add(insertUri);
+        mSmsValues.add(MmsService.getSmsImportValues(message.mAddress,
+                message.mText, message.mTimestamp, message.mSeen, message.mRead, mCreator));
+        if (mSmsUris.size() >= BATCH_SIZE) {
+            flushSms();
+        }
+    }
+
+    private void addMms(final Message message) {
+        mPendingPdus.add(mParseExecutor.submit(new Callable<GenericPdu>() {
+            @Override
+            public GenericPdu call() {
+                return mService.readImportedPdu(message.mContentUri);
+            }
+        }));
+        mPendingMessages.add(message);
+        if (mPendingPdus.size() >= MAX_PENDING_PDUS) {
+            persistNextMms();
+        }
+    }
+
+    // Persist the oldest pending MMS once parsed, and update its imported columns
+    private void persistNextMms() {
+        final Future<GenericPdu> pendingPdu = mPendingPdus.poll();
+        final Message message = mPendingMessages.poll();
+        GenericPdu pdu = null;
+        try {
+            pdu = pendingPdu.get();
+        } catch (InterruptedException | ExecutionException e) {
+            LogUtil.e("BulkImporter: failed to parse PDU", e);
+        }
+        final Uri insertUri = pdu != null ? MmsService.getMmsImportUri(pdu) : null;
+        if (insertUri == null) {
+            LogUtil.e("BulkImporter: can't import PDU");
+            onFailed(1);
+            return;
+        }
+        try {
+            final Uri uri = PduPersister.getPduPersister(mContext).persist(
+                    pdu,
+                    insertUri,
+                    true/*createThreadId*/,
+                    true/*groupMmsEnabled*/,
+                    null/*preOpenedFiles*/);
+            if (uri == null) {
+                LogUtil.e("BulkImporter: failed to persist message");
+                onFailed(1);
+                return;
+            }
+            mImported++;
+            // Update the imported columns right away, so that the message never sits in the
+            // inbox as unread and unseen
+            if (SqliteWrapper.update(mContext, mContext.getContentResolver(), uri,
+                    MmsService.getMmsImportValues(message.mMessageId, message.mTimestamp,
+                            message.mSeen, message.mRead, mCreator),
+                    null/*where*/, null/*selectionArg*/) != 1) {
+                LogUtil.e("BulkImporter: failed to update message");
+            }
+        } catch (MmsException | SQLiteException e) {
+            LogUtil.e("BulkImporter: failed to persist message", e);
+            onFailed(1);
+        } catch (RuntimeException e) {
+            // A malformed PDU fails on its own, without aborting the rest of the import
+            LogUtil.e("BulkImporter: failed to persist PDU", e);
+            onFailed(1);
+        }
+    }
+
+    private void flushSms() {
+        if (mSmsUris.isEmpty()) {
+            return;
+        }
+        final int count = mSmsUris.size();
+        final ArrayList<ContentProviderOperation> operations = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            operations.add(ContentProviderOperation.newInsert(mSmsUris.get(i))
+                    .withValues(mSmsValues.get(i))
+                    .build());
+        }
+        int inserted = 0;
+        try {
+            final ContentProviderResult[] results = mContext.getContentResolver().applyBatch(
+                    Telephony.Sms.CONTENT_URI.getAuthority(), operations);
+            for (ContentProviderResult result : results) {
+                if (result.uri != null) {
+                    inserted++;
+                }
+            }
+        } catch (RemoteException | OperationApplicationException | SQLiteException e) {
+            // The provider does not apply a batch in a transaction, so part of it may have been
+            // inserted. Insert the rest one at a time, skipping the messages already there.
+            LogUtil.e("BulkImporter: failed to insert text messages in a batch", e);
+            inserted = insertSmsOneByOne();
+        }
+        mSmsUris.clear();
+        mSmsValues.clear();
+        mImported += inserted;
+        onFailed(count - inserted);
+    }
+
+    // Insert the pending SMS one at a time, after a failed batch
+    private int insertSmsOneByOne() {
+        int inserted = 0;
+        for (int i = 0; i < mSmsUris.size(); i++) {
+            final Uri insertUri = mSmsUris.get(i);
+            final ContentValues values = mSmsValues.get(i);
+            try {
+                if (isSmsInserted(insertUri, values)
+                        || mContext.getContentResolver().insert(insertUri, values) != null) {
+                    inserted++;
+                }
+            } catch (SQLiteException e) {
+                LogUtil.e("BulkImporter: failed to insert text message", e);
+            }
+        }
+        return inserted;
+    }
+
+    // Whether an SMS with the same box, address, date and body exists already
+    private boolean isSmsInserted(Uri insertUri, ContentValues values) {
+        final String address = values.getAsString(Telephony.Sms.ADDRESS);
+        final String body = values.getAsString(Telephony.Sms.BODY);
+        final ArrayList<String> selectionArgs = new ArrayList<>(3);
+        final StringBuilder selection = new StringBuilder();
+        selection.append(Telephony.Sms.DATE).append("=?");
+        selectionArgs.add(values.getAsString(Telephony.Sms.DATE));
+        selection.append(" AND ").append(Telephony.Sms.ADDRESS);
+        if (address != null) {
+            selection.append("=?");
+            selectionArgs.add(address);
+        } else {
+            selection.append(" IS NULL");
+        }
+        selection.append(" AND ").append(Telephony.Sms.BODY);
+        if (body != null) {
+            selection.append("=?");
+            selectionArgs.add(body);
+        } else {
+            selection.append(" IS NULL");
+        }
+        Cursor cursor = null;
+        try {
+            cursor = SqliteWrapper.query(
+                    mContext,
+                    mContext.getContentResolver(),
+                    insertUri,
+                    new String[] { Telephony.Sms._ID },
+                    selection.toString(),
+                    selectionArgs.toArray(new String[selectionArgs.size()]),
+                    null/*sortOrder*/);
+            return cursor != null && cursor.getCount() > 0;
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+    }
+
+    private void onFailed(int count) {
+        mFailed += count;
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.service;
+
+import android.os.SystemClock;
+
+import java.io.PrintWriter;
+
+/**
+ * Service wide budget of PDU bytes held in memory by running MMS requests. It works like a
+ * semaphore over bytes: a request reserves the size of its PDU before reading it into memory,
+ * and waits if the budget is used up by other requests. Waiting requests are admitted as soon
+ * as their own reservation fits, so small messages are not held up behind large ones.
+ *
+ * A reservation larger than the whole budget is reduced to the budget, so it is admitted once
+ * nothing else is reserved.
+ */
+public class ByteBudget {
+    private final long mCapacity;
+    private long mReserved;
+
+    // Metrics
+    private long mHighWaterMark;
+    private long mAdmittedCount;
+    private long mWaitedCount;
+    private long mTimedOutCount;
+    private long mTotalWaitMillis;
+
+    /**
+     * Constructor
+     *
+     * @param capacity the number of bytes which can be reserved at the same time
+     */
+    public ByteBudget(long capacity) {
+        mCapacity = capacity;
+    }
+
+    /**
+     * @return the number of bytes which can be reserved at the same time
+     */
+    public long getCapacity() {
+        return mCapacity;
+    }
+
+    /**
+     * Reserve bytes from the budget, waiting for other reservations to be released if needed
+     *
+     * @param bytes the number of bytes to reserve
+     * @param timeoutMillis the maximum time to wait
+     * @return the number of bytes actually reserved, to pass to {@link #release(long)}, or -1 if
+     *         the budget was not available in time
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public synchronized long acquire(long bytes, long timeoutMillis)
+            throws InterruptedException {
+        bytes = Math.max(0, Math.min(bytes, mCapacity));
+        final long startTime = SystemClock.elapsedRealtime();
+        boolean waited = false;
+        while (mReserved + bytes > mCapacity) {
+            final long remaining = startTime + timeoutMillis - SystemClock.elapsedRealtime();
+            if (remaining <= 0) {
+                mTimedOutCount++;
+                return -1;
+            }
+            waited = true;
+            wait(remaining);
+        }
+        if (waited) {
+            mWaitedCount++;
+            mTotalWaitMillis += SystemClock.elapsedRealtime() - startTime;
+        }
+        mAdmittedCount++;
+        mReserved += bytes;
+        if (mReserved > mHighWaterMark) {
+            mHighWaterMark = mReserved;
+        }
+        return bytes;
+    }
+
+    /**
+     * Release bytes reserved by {@link #acquire(long, long)}
+     *
+     * @param bytes the number of bytes to release
+     */
+    public synchronized void release(long bytes) {
+        if (bytes <= 0) {
+            return;
+        }
+        mReserved = Math.max(0, mReserved - bytes);
+        // Any of the waiting requests may fit now
+        notifyAll();
+    }
+
+    /**
+     * Dump the budget metrics
+     *
+     * @param writer the writer to dump to
+     * @param prefix the prefix of each line
+     */
+    public synchronized void dump(PrintWriter writer, String prefix) {
+        writer.println(prefix + "capacity=" + mCapacity
+                + " reserved=" + mReserved
+                + " highWaterMark=" + mHighWaterMark);
+        writer.println(prefix + "admitted=" + mAdmittedCount
+                + " waited=" + mWaitedCount
+                + " avgWaitMs=" + (mWaitedCount > 0 ? mTotalWaitMillis / mWaitedCount : 0)
+                + " timedOut=" + mTimedOutCount);
+    }
+}
@@ -20,9 +20,12 @@ import android.app.Activity;
 import android.app.ActivityManagerNative;
 import android.app.AppOpsManager;
 import android.app.PendingIntent;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
+import android.content.OperationApplicationException;
 import android.content.pm.UserInfo;
 import android.database.sqlite.SQLiteException;
 import android.net.Uri;
@@ -35,9 +38,9 @@ import android.provider.Telephony;
 import android.service.carrier.CarrierMessagingService;
 import android.service.carrier.ICarrierMessagingService;
 import android.telephony.CarrierMessagingServiceManager;
-import android.telephony.SmsManager;
 import android.text.TextUtils;
 
+import com.android.mms.service.exception.MmsBudgetException;
 import com.android.mms.service.exception.MmsHttpException;
 import com.google.android.mms.MmsException;
 import com.google.android.mms.pdu.GenericPdu;
@@ -47,6 +50,11 @@ import com.google.android.mms.pdu.PduPersister;
 import com.google.android.mms.pdu.RetrieveConf;
 import com.google.android.mms.util.SqliteWrapper;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * Request to download an MMS
  */
@@ -58,6 +66,15 @@ public class DownloadRequest extends MmsRequest {
     private final PendingIntent mDownloadedIntent;
     private final Uri mContentUri;
 
+    // Duplicate requests for the same message which are waiting for the result of this one
+    private final List<DownloadRequest> mCoalescedRequests = new ArrayList<>();
+    // The request this one was coalesced into, if it is a duplicate
+    private volatile DownloadRequest mCoalescedInto;
+    // The URI of the message persisted by this request
+    private volatile Uri mMessageUri;
+    // Whether the response has been streamed into the content URI already
+    private volatile boolean mResponseStreamed;
+
     public DownloadRequest(RequestManager manager, int subId, String locationUrl,
             Uri contentUri, PendingIntent downloadedIntent, String creator,
             Bundle configOverrides, Context context) {
@@ -76,16 +93,68 @@ public class DownloadRequest extends MmsRequest {
             LogUtil.e(requestId, "MMS network is not ready!");
             throw new MmsHttpException(0/*statusCode*/, "MMS network is not ready");
         }
-        return mmsHttpClient.execute(
-                mLocationUrl,
-                null/*pud*/,
-                MmsHttpClient.METHOD_GET,
-                apn.isProxySet(),
-                apn.getProxyAddress(),
-                apn.getProxyPort(),
-                mMmsConfig,
-                mSubId,
-                requestId);
+        mResponseStreamed = false;
+        final boolean autoPersisting = mRequestManager.getAutoPersistingPref();
+        if (!autoPersisting) {
+            // Duplicates need the response in memory to write it to their own content URI,
+            // so don't accept new ones if the response may not be kept
+            mRequestManager.onDownloadFinished(this);
+        }
+        final boolean keepResponse = autoPersisting || hasCoalescedRequests();
+        // Each write to the content URI has a deadline, so that a stalled reader fails the
+        // download instead of blocking this thread and keeping the network up
+        final OutputStream out = mRequestManager.openPduOutputStream(mContentUri);
+        if (out == null) {
+            LogUtil.w(requestId, "Can not open content URI, transfer the response afterwards");
+            if (!reserveBytes(mMmsConfig.getMaxMessageSize())) {
+                throw new MmsBudgetException("No memory for response");
+            }
+            final byte[] response = mmsHttpClient.execute(
+                    mLocationUrl,
+                    (byte[]) null/*pdu*/,
+                    MmsHttpClient.METHOD_GET,
+                    apn.isProxySet(),
+                    apn.getProxyAddress(),
+                    apn.getProxyPort(),
+                    mMmsConfig,
+                    mSubId,
+                    requestId);
+            trimReservedBytes(response != null ? response.length : 0);
+            return response;
+        }
+        // Stream the response straight into the caller's content URI
+        try {
+            final byte[] response = mmsHttpClient.download(
+                    mLocationUrl,
+                    out,
+                    keepResponse,
+                    new MmsHttpClient.ResponseAdmission() {
+                        @Override
+                        public boolean admit(long size) {
+                            return reserveBytes(size);
+                        }
+                    },
+                    apn.isProxySet(),
+                    apn.getProxyAddress(),
+                    apn.getProxyPort(),
+                    mMmsConfig,
+                    mSubId,
+                    requestId);
+            out.close();
+            mResponseStreamed = true;
+            // Keep the budget of the actual size only
+            trimReservedBytes(response != null ? response.length : 0);
+            return response;
+        } catch (IOException e) {
+            LogUtil.e(requestId, "Failed to write response", e);
+            throw new MmsHttpException(0/*statusCode*/, "Failed to write response", e);
+        } finally {
+            try {
+                out.close();
+            } catch (IOException e) {
+                // Ignore
+            }
+        }
     }
 
     @Override
@@ -98,8 +167,77 @@ public class DownloadRequest extends MmsRequest {
         return MmsService.QUEUE_INDEX_DOWNLOAD;
     }
 
+    /**
+     * Downloads are usually triggered automatically on receiving the MMS notification. Callers
+     * downloading on user request can raise the priority with the config override hint.
+     */
+    @Override
+    protected int getDefaultPriority() {
+        return PRIORITY_AUTO_DOWNLOAD;
+    }
+
+    /**
+     * @return The key identifying duplicate downloads of the same message, or null if the
+     *         request can't be coalesced
+     */
+    String getCoalescingKey() {
+        if (TextUtils.isEmpty(mLocationUrl)) {
+            return null;
+        }
+        return mSubId + ":" + mLocationUrl;
+    }
+
+    /**
+     * Coalesce a duplicate download of the same message into this request. The duplicate
+     * gets the result of this request written to its own content URI and PendingIntent.
+     *
+     * @param request the duplicate request
+     */
+    void addCoalescedRequest(DownloadRequest request) {
+        request.mCoalescedInto = this;
+        synchronized (mCoalescedRequests) {
+            mCoalescedRequests.add(request);
+        }
+    }
+
+    private boolean hasCoalescedRequests() {
+        synchronized (mCoalescedRequests) {
+            return !mCoalescedRequests.isEmpty();
+        }
+    }
+
+    @Override
+    public void processResult(Context context, int result, byte[] response, int httpStatusCode) {
+        if (mCoalescedInto != null) {
+            super.processResult(context, result, response, httpStatusCode);
+            return;
+        }
+        // Stop accepting duplicates before handing the result out
+        mRequestManager.onDownloadFinished(this);
+        super.processResult(context, result, response, httpStatusCode);
+        final List<DownloadRequest> coalescedRequests;
+        synchronized (mCoalescedRequests) {
+            coalescedRequests = new ArrayList<>(mCoalescedRequests);
+            mCoalescedRequests.clear();
+        }
+        for (DownloadRequest request : coalescedRequests) {
+            LogUtil.d(getRequestId(), "Process result for coalesced " + request);
+            request.processResult(context, result, response, httpStatusCode);
+        }
+    }
+
     @Override
     protected Uri persistIfRequired(Context context, int result, byte[] response) {
+        final DownloadRequest coalescedInto = mCoalescedInto;
+        if (coalescedInto != null) {
+            // The message has been persisted once by the request this one was coalesced into
+            return coalescedInto.mMessageUri;
+        }
+        mMessageUri = persistDownloadedMessage(context, result, response);
+        return mMessageUri;
+    }
+
+    private Uri persistDownloadedMessage(Context context, int result, byte[] response) {
         final String requestId = getRequestId();
         // Let any mms apps running as secondary user know that a new mms has been downloaded.
         notifyOfDownload(context);
@@ -115,7 +253,7 @@ public class DownloadRequest extends MmsRequest {
         final long identity = Binder.clearCallingIdentity();
         try {
             final boolean supportMmsContentDisposition =
-                    mMmsConfig.getBoolean(SmsManager.MMS_CONFIG_SUPPORT_MMS_CONTENT_DISPOSITION);
+                    mMmsConfig.supportMmsContentDisposition();
             final GenericPdu pdu = (new PduParser(response, supportMmsContentDisposition)).parse();
             if (pdu == null || !(pdu instanceof RetrieveConf)) {
                 LogUtil.e(requestId, "persistIfRequired: invalid parsed PDU");
@@ -161,24 +299,27 @@ public class DownloadRequest extends MmsRequest {
                 values.put(Telephony.Mms.CREATOR, mCreator);
             }
             values.put(Telephony.Mms.SUBSCRIPTION_ID, mSubId);
-            if (SqliteWrapper.update(
-                    context,
-                    context.getContentResolver(),
-                    messageUri,
-                    values,
-                    null/*where*/,
-                    null/*selectionArg*/) != 1) {
-                LogUtil.e(requestId, "persistIfRequired: can not update message");
-            }
-            // Delete the corresponding NotificationInd
-            SqliteWrapper.delete(context,
-                    context.getContentResolver(),
-                    Telephony.Mms.CONTENT_URI,
-                    LOCATION_SELECTION,
-                    new String[]{
+            // Update the message and delete the corresponding NotificationInd in one batch
+            final ArrayList<ContentProviderOperation> operations = new ArrayList<>(2);
+            operations.add(ContentProviderOperation.newUpdate(messageUri)
+                    .withValues(values)
+                    .build());
+            operations.add(ContentProviderOperation.newDelete(Telephony.Mms.CONTENT_URI)
+                    .withSelection(LOCATION_SELECTION, new String[] {
                             Integer.toString(PduHeaders.MESSAGE_TYPE_NOTIFICATION_IND),
                             mLocationUrl
-                    });
+                    })
+                    .build());
+            try {
+                final ContentProviderResult[] results = context.getContentResolver().applyBatch(
+                        messageUri.getAuthority(), operations);
+                if (results.length < 1 || results[0].count == null || results[0].count != 1) {
+                    LogUtil.e(requestId, "persistIfRequired: can not update message");
+                }
+            } catch (SQLiteException | RemoteException | OperationApplicationException e) {
+                // The message is persisted already, only its properties may be stale
+                LogUtil.e(requestId, "persistIfRequired: can not update message", e);
+            }
 
             return messageUri;
         } catch (MmsException e) {
@@ -240,6 +381,10 @@ public class DownloadRequest extends MmsRequest {
      */
     @Override
     protected boolean transferResponse(Intent fillIn, final byte[] response) {
+        if (mResponseStreamed) {
+            // Written while downloading, the response is only kept for persisting
+            return true;
+        }
         return mRequestManager.writePduToContentUri(mContentUri, response);
     }
 
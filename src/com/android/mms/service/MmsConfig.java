@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.service;
+
+import android.os.Bundle;
+import android.telephony.SmsManager;
+
+/**
+ * An immutable snapshot of the MMS config of a subscription, with the values used by every
+ * request resolved into typed fields. Snapshots are shared by all requests of a subscription,
+ * and caller overrides are applied by creating a new snapshot, never by changing one.
+ */
+public class MmsConfig {
+    // All the config values, never changed once the snapshot is created
+    private final Bundle mValues;
+    // The version of the loaded config this snapshot derives from
+    private final int mVersion;
+
+    private final int mMaxMessageSize;
+    private final int mHttpSocketTimeout;
+    private final boolean mSupportMmsContentDisposition;
+    private final boolean mSupportHttpCharsetHeader;
+    private final boolean mCloseConnection;
+    private final String mUserAgent;
+    private final String mUaProfTagName;
+    private final String mUaProfUrl;
+    private final String mHttpParams;
+    private final String mNaiSuffix;
+    private final int mNetworkLingerMillis;
+    private final int mNetworkAcquireTimeoutMinMillis;
+    private final int mNetworkAcquireTimeoutMaxMillis;
+
+    /**
+     * Constructor
+     *
+     * @param values the config values, owned by the snapshot from now on
+     * @param version the version of the loaded config
+     */
+    MmsConfig(Bundle values, int version) {
+        mValues = values;
+        mVersion = version;
+        mMaxMessageSize = values.getInt(SmsManager.MMS_CONFIG_MAX_MESSAGE_SIZE);
+        mHttpSocketTimeout = values.getInt(SmsManager.MMS_CONFIG_HTTP_SOCKET_TIMEOUT);
+        mSupportMmsContentDisposition =
+                values.getBoolean(SmsManager.MMS_CONFIG_SUPPORT_MMS_CONTENT_DISPOSITION);
+        mSupportHttpCharsetHeader =
+                values.getBoolean(SmsManager.MMS_CONFIG_SUPPORT_HTTP_CHARSET_HEADER);
+        mCloseConnection = values.getBoolean(SmsManager.MMS_CONFIG_CLOSE_CONNECTION, false);
+        mUserAgent = values.getString(SmsManager.MMS_CONFIG_USER_AGENT);
+        mUaProfTagName = values.getString(SmsManager.MMS_CONFIG_UA_PROF_TAG_NAME);
+        mUaProfUrl = values.getString(SmsManager.MMS_CONFIG_UA_PROF_URL);
+        mHttpParams = values.getString(SmsManager.MMS_CONFIG_HTTP_PARAMS);
+        mNaiSuffix = values.getString(SmsManager.MMS_CONFIG_NAI_SUFFIX);
+        mNetworkLingerMillis = values.getInt(MmsConfigManager.CONFIG_NETWORK_LINGER_MILLIS,
+                MmsConfigManager.DEFAULT_NETWORK_LINGER_MILLIS);
+        mNetworkAcquireTimeoutMinMillis = values.getInt(
+                MmsConfigManager.CONFIG_NETWORK_ACQUIRE_TIMEOUT_MIN_MILLIS,
+                MmsConfigManager.DEFAULT_NETWORK_ACQUIRE_TIMEOUT_MIN_MILLIS);
+        mNetworkAcquireTimeoutMaxMillis = values.getInt(
+                MmsConfigManager.CONFIG_NETWORK_ACQUIRE_TIMEOUT_MAX_MILLIS,
+                MmsConfigManager.DEFAULT_NETWORK_ACQUIRE_TIMEOUT_MAX_MILLIS);
+    }
+
+    /**
+     * Apply caller overrides
+     *
+     * @param overrides the config values to override, may be null
+     * @return this snapshot if there is nothing to override, or a new snapshot
+     */
+    public MmsConfig withOverrides(Bundle overrides) {
+        if (overrides == null || overrides.isEmpty()) {
+            return this;
+        }
+        final Bundle values = new Bundle(mValues);
+        values.putAll(overrides);
+        return new MmsConfig(values, mVersion);
+    }
+
+    public int getMaxMessageSize() {
+        return mMaxMessageSize;
+    }
+
+    public int getHttpSocketTimeout() {
+        return mHttpSocketTimeout;
+    }
+
+    public boolean supportMmsContentDisposition() {
+        return mSupportMmsContentDisposition;
+    }
+
+    public boolean supportHttpCharsetHeader() {
+        return mSupportHttpCharsetHeader;
+    }
+
+    public boolean closeConnection() {
+        return mCloseConnection;
+    }
+
+    public String getUserAgent() {
+        return mUserAgent;
+    }
+
+    public String getUaProfTagName() {
+        return mUaProfTagName;
+    }
+
+    public String getUaProfUrl() {
+        return mUaProfUrl;
+    }
+
+    public String getHttpParams() {
+        return mHttpParams;
+    }
+
+    public String getNaiSuffix() {
+        return mNaiSuffix;
+    }
+
+    public int getNetworkLingerMillis() {
+        return mNetworkLingerMillis;
+    }
+
+    public int getNetworkAcquireTimeoutMinMillis() {
+        return mNetworkAcquireTimeoutMinMillis;
+    }
+
+    public int getNetworkAcquireTimeoutMaxMillis() {
+        return mNetworkAcquireTimeoutMaxMillis;
+    }
+
+    @Override
+    public String toString() {
+        return "MmsConfig v" + mVersion + " " + mValues;
+    }
+}
@@ -28,7 +28,10 @@ import android.telephony.SmsManager;
 import android.telephony.SubscriptionInfo;
 import android.telephony.SubscriptionManager;
 import android.telephony.SubscriptionManager.OnSubscriptionsChangedListener;
+import android.telephony.TelephonyManager;
+import android.text.TextUtils;
 import android.util.ArrayMap;
+import android.util.Log;
 
 import com.android.internal.telephony.IccCardConstants;
 import com.android.internal.telephony.TelephonyIntents;
@@ -43,6 +46,24 @@ import java.util.Map;
  *
  */
 public class MmsConfigManager {
+    /*
+     * MMS service specific config keys, in addition to the SmsManager MMS_CONFIG_* keys.
+     * Carriers set these in their carrier config.
+     */
+    // How long to keep the MMS network after the last request releases it, so that requests
+    // arriving shortly after can reuse it instead of setting up the network again
+    public static final String CONFIG_NETWORK_LINGER_MILLIS = "mmsNetworkLingerMillis";
+    public static final int DEFAULT_NETWORK_LINGER_MILLIS = 3 * 1000;
+    // Bounds of the timeout to get the MMS network, which is learned from recent network setup
+    // latencies. Given that the telephony layer will retry on failures, the upper bound should
+    // be high enough.
+    public static final String CONFIG_NETWORK_ACQUIRE_TIMEOUT_MIN_MILLIS =
+            "mmsNetworkAcquireTimeoutMinMillis";
+    public static final int DEFAULT_NETWORK_ACQUIRE_TIMEOUT_MIN_MILLIS = 2 * 60 * 1000;
+    public static final String CONFIG_NETWORK_ACQUIRE_TIMEOUT_MAX_MILLIS =
+            "mmsNetworkAcquireTimeoutMaxMillis";
+    public static final int DEFAULT_NETWORK_ACQUIRE_TIMEOUT_MAX_MILLIS = 30 * 60 * 1000;
+
     private static volatile MmsConfigManager sInstance = new MmsConfigManager();
 
     public static MmsConfigManager getInstance() {
@@ -51,6 +72,10 @@ public class MmsConfigManager {
 
     // Map the various subIds to their corresponding MmsConfigs.
     private final Map<Integer, Bundle> mSubIdConfigMap = new ArrayMap<Integer, Bundle>();
+    // Map the various subIds to the snapshots of their MmsConfigs used by requests.
+    private final Map<Integer, MmsConfig> mSubIdSnapshotMap = new ArrayMap<Integer, MmsConfig>();
+    // Incremented on every load
+    private int mVersion;
     private Context mContext;
     private SubscriptionManager mSubscriptionManager;
 
@@ -131,7 +156,9 @@ public class MmsConfigManager {
         synchronized(mSubIdConfigMap) {
             mmsConfig = mSubIdConfigMap.get(subId);
         }
-        LogUtil.i("mms config for sub " + subId + ": " + mmsConfig);
+        if (LogUtil.isLoggable(Log.VERBOSE)) {
+            LogUtil.v("mms config for sub " + subId + ": " + mmsConfig);
+        }
         // Return a copy so that callers can mutate it.
         if (mmsConfig != null) {
           return new Bundle(mmsConfig);
@@ -139,6 +166,21 @@ public class MmsConfigManager {
         return null;
     }
 
+    /**
+     * Find and return the snapshot of the MMS config for a particular subscription id, with
+     * the user agent values resolved. This does not copy anything, so it is cheap enough to
+     * call for every request.
+     *
+     * @param subId Subscription id of the desired MMS config
+     * @return the MMS config snapshot, or null if the MMS config cannot be found, see
+     *         {@link #getMmsConfigBySubId(int)}
+     */
+    public MmsConfig getMmsConfigSnapshotBySubId(int subId) {
+        synchronized(mSubIdConfigMap) {
+            return mSubIdSnapshotMap.get(subId);
+        }
+    }
+
     /**
      * This loads the MMS config for each active subscription.
      *
@@ -154,17 +196,78 @@ public class MmsConfigManager {
         // Load all the config bundles into a new map and then swap it with the real map to avoid
         // blocking.
         final Map<Integer, Bundle> newConfigMap = new ArrayMap<Integer, Bundle>();
+        final Map<Integer, Bundle> newSnapshotValues = new ArrayMap<Integer, Bundle>();
         final CarrierConfigManager configManager =
                 (CarrierConfigManager) context.getSystemService(Context.CARRIER_CONFIG_SERVICE);
         for (SubscriptionInfo sub : subs) {
             final int subId = sub.getSubscriptionId();
             PersistableBundle config = configManager.getConfigForSubId(subId);
-            newConfigMap.put(subId, SmsManager.getMmsConfig(config));
+            final Bundle mmsConfig = SmsManager.getMmsConfig(config);
+            newConfigMap.put(subId, mmsConfig);
+            // The service config is only used internally, so it is kept out of the bundle
+            // returned to apps
+            final Bundle snapshotValues = new Bundle(mmsConfig);
+            addServiceConfig(config, snapshotValues);
+            addUserAgentConfig(context, snapshotValues);
+            newSnapshotValues.put(subId, snapshotValues);
         }
         synchronized(mSubIdConfigMap) {
+            mVersion++;
             mSubIdConfigMap.clear();
             mSubIdConfigMap.putAll(newConfigMap);
+            mSubIdSnapshotMap.clear();
+            for (Map.Entry<Integer, Bundle> entry : newSnapshotValues.entrySet()) {
+                mSubIdSnapshotMap.put(entry.getKey(), new MmsConfig(entry.getValue(), mVersion));
+            }
+            LogUtil.i("MmsConfigManager: loaded version " + mVersion
+                    + " for " + newConfigMap.size() + " subs");
+        }
+    }
+
+    /**
+     * Add the MMS service specific config, which SmsManager.getMmsConfig does not copy
+     *
+     * @param carrierConfig the carrier config of a subscription, may be null
+     * @param mmsConfig the MMS config snapshot values to add to
+     */
+    private static void addServiceConfig(PersistableBundle carrierConfig, Bundle mmsConfig) {
+        copyInt(carrierConfig, mmsConfig, CONFIG_NETWORK_LINGER_MILLIS,
+                DEFAULT_NETWORK_LINGER_MILLIS);
+        copyInt(carrierConfig, mmsConfig, CONFIG_NETWORK_ACQUIRE_TIMEOUT_MIN_MILLIS,
+                DEFAULT_NETWORK_ACQUIRE_TIMEOUT_MIN_MILLIS);
+        copyInt(carrierConfig, mmsConfig, CONFIG_NETWORK_ACQUIRE_TIMEOUT_MAX_MILLIS,
+                DEFAULT_NETWORK_ACQUIRE_TIMEOUT_MAX_MILLIS);
+    }
+
+    /**
+     * Add the user agent values from TelephonyManager, which take precedence over the carrier
+     * config
+     *
+     * @param context the context to get TelephonyManager with
+     * @param mmsConfig the MMS config bundle to add to
+     */
+    private static void addUserAgentConfig(Context context, Bundle mmsConfig) {
+        // TODO: Make MmsConfigManager authoritative for user agent and don't consult
+        // TelephonyManager.
+        final TelephonyManager telephonyManager =
+                (TelephonyManager) context.getSystemService(Context.TELEPHONY_SERVICE);
+        final String userAgent = telephonyManager.getMmsUserAgent();
+        if (!TextUtils.isEmpty(userAgent)) {
+            mmsConfig.putString(SmsManager.MMS_CONFIG_USER_AGENT, userAgent);
+        }
+        final String userAgentProfileUrl = telephonyManager.getMmsUAProfUrl();
+        if (!TextUtils.isEmpty(userAgentProfileUrl)) {
+            mmsConfig.putString(SmsManager.MMS_CONFIG_UA_PROF_URL, userAgentProfileUrl);
+        }
+    }
+
+    private static void copyInt(PersistableBundle carrierConfig, Bundle mmsConfig, String key,
+            int defaultValue) {
+        int value = defaultValue;
+        if (carrierConfig != null) {
+            value = carrierConfig.getInt(key, defaultValue);
         }
+        mmsConfig.putInt(key, value);
     }
 
 }
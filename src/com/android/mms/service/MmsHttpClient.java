@@ -20,15 +20,15 @@ import android.content.Context;
 import android.net.ConnectivityManager;
 import android.net.LinkProperties;
 import android.net.Network;
-import android.os.Bundle;
 import android.telephony.CarrierConfigManager;
-import android.telephony.SmsManager;
 import android.telephony.SubscriptionManager;
 import android.telephony.TelephonyManager;
 import android.text.TextUtils;
 import android.util.Base64;
 import android.util.Log;
+import com.android.mms.service.exception.MmsBudgetException;
 import com.android.mms.service.exception.MmsHttpException;
+import com.android.mms.service.exception.MmsTooLargeException;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
@@ -45,6 +45,7 @@ import java.net.MalformedURLException;
 import java.net.ProtocolException;
 import java.net.Proxy;
 import java.net.URL;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
@@ -74,9 +75,47 @@ public class MmsHttpClient {
             "application/vnd.wap.mms-message";
     private static final String HEADER_CONNECTION_CLOSE = "close";
 
+    // Bounds of the chunk size used to read responses without a Content-Length
+    private static final int MIN_READ_CHUNK_SIZE = 4 * 1024;
+    private static final int MAX_READ_CHUNK_SIZE = 64 * 1024;
+    // Largest response buffer allocated up front from the Content-Length sent by the server.
+    // The rest of a larger response is read into a growing buffer.
+    private static final int MAX_PRESIZED_RESPONSE_SIZE = 1024 * 1024;
+
     private static final int IPV4_WAIT_ATTEMPTS = 15;
     private static final long IPV4_WAIT_DELAY_MS = 1000; // 1 seconds
 
+    /**
+     * Body of a POST request, written to the HTTP connection
+     */
+    public interface RequestBody {
+        /**
+         * @return the length of the body in bytes
+         */
+        long getLength();
+
+        /**
+         * Write the whole body. This may be called again when the request is retried.
+         *
+         * @param out the output stream of the HTTP connection
+         * @throws IOException for any failures
+         */
+        void writeTo(OutputStream out) throws IOException;
+    }
+
+    /**
+     * Admission of a response body into memory, once its size is known
+     */
+    public interface ResponseAdmission {
+        /**
+         * Called before reading a response body which is kept in memory
+         *
+         * @param size the Content-Length of the response, or the max message size if unknown
+         * @return false if the response can not be kept in memory now
+         */
+        boolean admit(long size);
+    }
+
     private final Context mContext;
     private final Network mNetwork;
     private final ConnectivityManager mConnectivityManager;
@@ -110,14 +149,92 @@ public class MmsHttpClient {
      * @return The HTTP response body
      * @throws MmsHttpException For any failures
      */
-    public byte[] execute(String urlString, byte[] pdu, String method, boolean isProxySet,
-            String proxyHost, int proxyPort, Bundle mmsConfig, int subId, String requestId)
+    public byte[] execute(String urlString, final byte[] pdu, String method, boolean isProxySet,
+            String proxyHost, int proxyPort, MmsConfig mmsConfig, int subId, String requestId)
+            throws MmsHttpException {
+        RequestBody body = null;
+        if (pdu != null) {
+            body = new RequestBody() {
+                @Override
+                public long getLength() {
+                    return pdu.length;
+                }
+
+                @Override
+                public void writeTo(OutputStream out) throws IOException {
+                    out.write(pdu);
+                }
+            };
+        }
+        return execute(urlString, body, method, isProxySet, proxyHost, proxyPort, mmsConfig,
+                subId, requestId);
+    }
+
+    /**
+     * Execute an MMS HTTP request, with the POST body written from a {@link RequestBody}
+     * instead of a byte array, e.g. streamed from a file
+     *
+     * @param urlString The request URL
+     * @param body For POST (sending) only, the body to send
+     * @param method HTTP method, POST for sending and GET for downloading
+     * @param isProxySet Is there a proxy for the MMSC
+     * @param proxyHost The proxy host
+     * @param proxyPort The proxy port
+     * @param mmsConfig The MMS config to use
+     * @param subId The subscription ID used to get line number, etc.
+     * @param requestId The request ID for logging
+     * @return The HTTP response body
+     * @throws MmsHttpException For any failures
+     */
+    public byte[] execute(String urlString, RequestBody body, String method, boolean isProxySet,
+            String proxyHost, int proxyPort, MmsConfig mmsConfig, int subId, String requestId)
+            throws MmsHttpException {
+        return execute(urlString, body, method, null/*responseOut*/, true/*keepResponse*/,
+                null/*admission*/, isProxySet, proxyHost, proxyPort, mmsConfig, subId, requestId);
+    }
+
+    /**
+     * Execute an MMS HTTP GET (downloading) with the response body streamed to an output stream
+     * as it is received, instead of being accumulated in memory
+     *
+     * @param urlString The message URL
+     * @param responseOut The output stream to write the response body to
+     * @param keepResponse Whether to also keep the response body in memory and return it
+     * @param admission The optional admission of a response body kept in memory
+     * @param isProxySet Is there a proxy for the MMSC
+     * @param proxyHost The proxy host
+     * @param proxyPort The proxy port
+     * @param mmsConfig The MMS config to use
+     * @param subId The subscription ID used to get line number, etc.
+     * @param requestId The request ID for logging
+     * @return The HTTP response body if keepResponse is true, else null
+     * @throws MmsHttpException For any failures
+     */
+    public byte[] download(String urlString, OutputStream responseOut, boolean keepResponse,
+            ResponseAdmission admission, boolean isProxySet, String proxyHost, int proxyPort,
+            MmsConfig mmsConfig, int subId, String requestId) throws MmsHttpException {
+        return execute(urlString, null/*body*/, METHOD_GET, responseOut, keepResponse,
+                admission, isProxySet, proxyHost, proxyPort, mmsConfig, subId, requestId);
+    }
+
+    private byte[] execute(String urlString, RequestBody body, String method,
+            OutputStream responseOut, boolean keepResponse, ResponseAdmission admission,
+            boolean isProxySet,
+            String proxyHost, int proxyPort, MmsConfig mmsConfig, int subId, String requestId)
             throws MmsHttpException {
         LogUtil.d(requestId, "HTTP: " + method + " " + redactUrlForNonVerbose(urlString)
                 + (isProxySet ? (", proxy=" + proxyHost + ":" + proxyPort) : "")
-                + ", PDU size=" + (pdu != null ? pdu.length : 0));
+                + ", PDU size=" + (body != null ? body.getLength() : 0));
         checkMethod(method);
         HttpURLConnection connection = null;
+        // Some carriers require that the HTTP connection's socket is closed
+        // after an MMS request/response is complete. In these cases keep alive
+        // is disabled. See https://tools.ietf.org/html/rfc7230#section-6.6
+        final boolean closeConnection =
+                mmsConfig.closeConnection();
+        // Whether the response has been read completely so the connection can go back to
+        // the pool of the network
+        boolean completed = false;
         try {
             Proxy proxy = Proxy.NO_PROXY;
             if (isProxySet) {
@@ -129,8 +246,7 @@ public class MmsHttpClient {
             // Now get the connection
             connection = (HttpURLConnection) mNetwork.openConnection(url, proxy);
             connection.setDoInput(true);
-            connection.setConnectTimeout(
-                    mmsConfig.getInt(SmsManager.MMS_CONFIG_HTTP_SOCKET_TIMEOUT));
+            connection.setConnectTimeout(mmsConfig.getHttpSocketTimeout());
             // ------- COMMON HEADERS ---------
             // Header: Accept
             connection.setRequestProperty(HEADER_ACCEPT, HEADER_VALUE_ACCEPT);
@@ -138,22 +254,18 @@ public class MmsHttpClient {
             connection.setRequestProperty(
                     HEADER_ACCEPT_LANGUAGE, getCurrentAcceptLanguage(Locale.getDefault()));
             // Header: User-Agent
-            final String userAgent = mmsConfig.getString(SmsManager.MMS_CONFIG_USER_AGENT);
+            final String userAgent = mmsConfig.getUserAgent();
             LogUtil.i(requestId, "HTTP: User-Agent=" + userAgent);
             connection.setRequestProperty(HEADER_USER_AGENT, userAgent);
             // Header: x-wap-profile
-            final String uaProfUrlTagName =
-                    mmsConfig.getString(SmsManager.MMS_CONFIG_UA_PROF_TAG_NAME);
-            final String uaProfUrl = mmsConfig.getString(SmsManager.MMS_CONFIG_UA_PROF_URL);
+            final String uaProfUrlTagName = mmsConfig.getUaProfTagName();
+            final String uaProfUrl = mmsConfig.getUaProfUrl();
             if (uaProfUrl != null) {
                 LogUtil.i(requestId, "HTTP: UaProfUrl=" + uaProfUrl);
                 connection.setRequestProperty(uaProfUrlTagName, uaProfUrl);
             }
             // Header: Connection: close (if needed)
-            // Some carriers require that the HTTP connection's socket is closed
-            // after an MMS request/response is complete. In these cases keep alive
-            // is disabled. See https://tools.ietf.org/html/rfc7230#section-6.6
-            if (mmsConfig.getBoolean(SmsManager.MMS_CONFIG_CLOSE_CONNECTION, false)) {
+            if (closeConnection) {
                 LogUtil.i(requestId, "HTTP: Connection close after request");
                 connection.setRequestProperty(HEADER_CONNECTION, HEADER_CONNECTION_CLOSE);
             }
@@ -161,13 +273,13 @@ public class MmsHttpClient {
             addExtraHeaders(connection, mmsConfig, subId);
             // Different stuff for GET and POST
             if (METHOD_POST.equals(method)) {
-                if (pdu == null || pdu.length < 1) {
+                if (body == null || body.getLength() < 1) {
                     LogUtil.e(requestId, "HTTP: empty pdu");
                     throw new MmsHttpException(0/*statusCode*/, "Sending empty PDU");
                 }
                 connection.setDoOutput(true);
                 connection.setRequestMethod(METHOD_POST);
-                if (mmsConfig.getBoolean(SmsManager.MMS_CONFIG_SUPPORT_HTTP_CHARSET_HEADER)) {
+                if (mmsConfig.supportHttpCharsetHeader()) {
                     connection.setRequestProperty(HEADER_CONTENT_TYPE,
                             HEADER_VALUE_CONTENT_TYPE_WITH_CHARSET);
                 } else {
@@ -177,11 +289,11 @@ public class MmsHttpClient {
                 if (LogUtil.isLoggable(Log.VERBOSE)) {
                     logHttpHeaders(connection.getRequestProperties(), requestId);
                 }
-                connection.setFixedLengthStreamingMode(pdu.length);
+                connection.setFixedLengthStreamingMode(body.getLength());
                 // Sending request body
                 final OutputStream out =
                         new BufferedOutputStream(connection.getOutputStream());
-                out.write(pdu);
+                body.writeTo(out);
                 out.flush();
                 out.close();
             } else if (METHOD_GET.equals(method)) {
@@ -200,18 +312,94 @@ public class MmsHttpClient {
             if (responseCode / 100 != 2) {
                 throw new MmsHttpException(responseCode, responseMessage);
             }
+            // Don't read a response which is known to be too large
+            final int maxSize = mmsConfig.getMaxMessageSize();
+            final int contentLength = connection.getContentLength();
+            if (maxSize > 0 && contentLength > maxSize) {
+                LogUtil.e(requestId, "HTTP: Content-Length " + contentLength
+                        + " exceeds max size " + maxSize);
+                throw new MmsTooLargeException(contentLength, "Response too large");
+            }
+            if (admission != null && (responseOut == null || keepResponse)
+                    && !admission.admit(contentLength > 0 ? contentLength : Math.max(maxSize, 0))) {
+                throw new MmsBudgetException("No memory for response");
+            }
             final InputStream in = new BufferedInputStream(connection.getInputStream());
-            final ByteArrayOutputStream byteOut = new ByteArrayOutputStream();
-            final byte[] buf = new byte[4096];
-            int count = 0;
-            while ((count = in.read(buf)) > 0) {
-                byteOut.write(buf, 0, count);
+            // Keep the response in memory unless it only goes to the output stream. With a
+            // Content-Length, it is read straight into an array of the exact size, but no
+            // larger than the max size, which the server can't be trusted to respect
+            byte[] body = null;
+            int bodyLength = 0;
+            ByteArrayOutputStream byteOut = null;
+            if (responseOut == null || keepResponse) {
+                if (contentLength > 0) {
+                    final int presizeLimit = maxSize > 0
+                            ? Math.min(maxSize, MAX_PRESIZED_RESPONSE_SIZE)
+                            : MAX_PRESIZED_RESPONSE_SIZE;
+                    body = new byte[Math.min(contentLength, presizeLimit)];
+                } else {
+                    byteOut = new ByteArrayOutputStream();
+                }
+            }
+            byte[] buf = new byte[MIN_READ_CHUNK_SIZE];
+            long responseSize = 0;
+            while (true) {
+                final byte[] target;
+                final int offset;
+                final int count;
+                if (body != null && bodyLength < body.length) {
+                    target = body;
+                    offset = bodyLength;
+                    count = in.read(body, bodyLength, body.length - bodyLength);
+                } else {
+                    target = buf;
+                    offset = 0;
+                    count = in.read(buf);
+                }
+                if (count <= 0) {
+                    break;
+                }
+                if (responseOut != null) {
+                    responseOut.write(target, offset, count);
+                }
+                if (target == body) {
+                    bodyLength += count;
+                } else if (body != null) {
+                    // Longer than its Content-Length or the presized buffer, so grow the buffer
+                    // from here on
+                    if (responseSize + count > contentLength) {
+                        LogUtil.w(requestId, "HTTP: response longer than Content-Length");
+                    }
+                    byteOut = new ByteArrayOutputStream(body.length * 2);
+                    byteOut.write(body, 0, bodyLength);
+                    byteOut.write(buf, 0, count);
+                    body = null;
+                } else if (byteOut != null) {
+                    byteOut.write(buf, 0, count);
+                }
+                // A full chunk means more data was already waiting, so read bigger chunks on
+                // faster links
+                if (target == buf && count == buf.length && buf.length < MAX_READ_CHUNK_SIZE) {
+                    buf = new byte[buf.length * 2];
+                }
+                responseSize += count;
+                if (maxSize > 0 && responseSize > maxSize) {
+                    // Stop before buffering any more of a response without Content-Length
+                    LogUtil.e(requestId, "HTTP: response exceeds max size " + maxSize);
+                    throw new MmsTooLargeException(responseSize, "Response too large");
+                }
             }
             in.close();
-            final byte[] responseBody = byteOut.toByteArray();
-            LogUtil.d(requestId, "HTTP: response size="
-                    + (responseBody != null ? responseBody.length : 0));
-            return responseBody;
+            if (responseOut != null) {
+                responseOut.flush();
+            }
+            completed = true;
+            LogUtil.d(requestId, "HTTP: response size=" + responseSize
+                    + (responseOut != null ? " (streamed)" : ""));
+            if (body != null) {
+                return bodyLength == body.length ? body : Arrays.copyOf(body, bodyLength);
+            }
+            return byteOut != null ? byteOut.toByteArray() : null;
         } catch (MalformedURLException e) {
             final String redactedUrl = redactUrlForNonVerbose(urlString);
             LogUtil.e(requestId, "HTTP: invalid URL " + redactedUrl, e);
@@ -224,7 +412,9 @@ public class MmsHttpClient {
             LogUtil.e(requestId, "HTTP: IO failure", e);
             throw new MmsHttpException(0/*statusCode*/, e);
         } finally {
-            if (connection != null) {
+            // Keep the connection alive in the pool of the network for the next request to the
+            // MMSC, unless the carrier requires closing it or it is left in an unknown state
+            if (connection != null && (closeConnection || !completed)) {
                 connection.disconnect();
             }
         }
@@ -351,8 +541,8 @@ public class MmsHttpClient {
      * @param mmsConfig The MmsConfig object
      * @param subId The subscription ID used to get line number, etc.
      */
-    private void addExtraHeaders(HttpURLConnection connection, Bundle mmsConfig, int subId) {
-        final String extraHttpParams = mmsConfig.getString(SmsManager.MMS_CONFIG_HTTP_PARAMS);
+    private void addExtraHeaders(HttpURLConnection connection, MmsConfig mmsConfig, int subId) {
+        final String extraHttpParams = mmsConfig.getHttpParams();
         if (!TextUtils.isEmpty(extraHttpParams)) {
             // Parse the parameter list
             String paramList[] = extraHttpParams.split("\\|");
@@ -380,7 +570,8 @@ public class MmsHttpClient {
      * @param subId The subscription ID used to get line number, etc.
      * @return The HTTP param with macros resolved to real value
      */
-    private static String resolveMacro(Context context, String value, Bundle mmsConfig, int subId) {
+    private static String resolveMacro(Context context, String value, MmsConfig mmsConfig,
+            int subId) {
         if (TextUtils.isEmpty(value)) {
             return value;
         }
@@ -457,7 +648,7 @@ public class MmsHttpClient {
      * @param subId The subscription ID used to get line number, etc.
      * @return The value of the defined macro
      */
-    private static String getMacroValue(Context context, String macro, Bundle mmsConfig,
+    private static String getMacroValue(Context context, String macro, MmsConfig mmsConfig,
             int subId) {
         if (MACRO_LINE1.equals(macro)) {
             return getLine1(context, subId);
@@ -495,7 +686,7 @@ public class MmsHttpClient {
      * Returns the NAI (Network Access Identifier) from SystemProperties for the given subscription
      * ID.
      */
-    private static String getNai(Context context, Bundle mmsConfig, int subId) {
+    private static String getNai(Context context, MmsConfig mmsConfig, int subId) {
         final TelephonyManager telephonyManager = (TelephonyManager) context.getSystemService(
                 Context.TELEPHONY_SERVICE);
         String nai = telephonyManager.getNai(SubscriptionManager.getSlotId(subId));
@@ -504,7 +695,7 @@ public class MmsHttpClient {
         }
 
         if (!TextUtils.isEmpty(nai)) {
-            String naiSuffix = mmsConfig.getString(SmsManager.MMS_CONFIG_NAI_SUFFIX);
+            String naiSuffix = mmsConfig.getNaiSuffix();
             if (!TextUtils.isEmpty(naiSuffix)) {
                 nai = nai + naiSuffix;
             }
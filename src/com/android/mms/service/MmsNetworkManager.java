@@ -22,21 +22,34 @@ import android.net.Network;
 import android.net.NetworkCapabilities;
 import android.net.NetworkInfo;
 import android.net.NetworkRequest;
+import android.os.Handler;
+import android.os.Looper;
 import android.os.SystemClock;
 
 import com.android.mms.service.exception.MmsNetworkException;
 
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * Manages the MMS network connectivity
  */
 public class MmsNetworkManager {
-    // Timeout used to call ConnectivityManager.requestNetwork
-    // Given that the telephony layer will retry on failures, this timeout should be high enough.
-    private static final int NETWORK_REQUEST_TIMEOUT_MILLIS = 30 * 60 * 1000;
-    // Wait timeout for this class, a little bit longer than the above timeout
+    // The timeout used to call ConnectivityManager.requestNetwork is learned from recent
+    // network setup latencies, and bounded by the carrier config. Without any history, the
+    // upper bound is used, since the telephony layer will retry on failures.
+    // Number of recent network setup latencies to learn the timeout from
+    private static final int SETUP_LATENCY_HISTORY_SIZE = 8;
+    // The learned timeout is this multiple of the slowest recent network setup
+    private static final int SETUP_LATENCY_TIMEOUT_MULTIPLIER = 4;
+    // Wait timeout for this class is a little bit longer than the request timeout
     // to make sure we don't bail prematurely
-    private static final int NETWORK_ACQUIRE_TIMEOUT_MILLIS =
-            NETWORK_REQUEST_TIMEOUT_MILLIS + (5 * 1000);
+    private static final int NETWORK_ACQUIRE_TIMEOUT_MARGIN_MILLIS = 5 * 1000;
+    // After this many consecutive failures to get the network, fail new requests right away
+    private static final int FAST_FAIL_THRESHOLD = 3;
+    // How long to keep failing fast after the last failure before trying the network again
+    private static final long FAST_FAIL_WINDOW_MILLIS = 5 * 60 * 1000;
 
     private final Context mContext;
 
@@ -60,6 +73,64 @@ public class MmsNetworkManager {
     // The SIM ID which we use to connect
     private final int mSubId;
 
+    // Handler for the network acquire timeout and for releasing the network after lingering
+    private final Handler mHandler;
+    // Acquisitions waiting for the network to become available
+    private final List<NetworkAcquisition> mPendingAcquisitions = new ArrayList<>();
+    // When the network started lingering after the last release, 0 if not lingering
+    private long mLingerStartTime;
+    // Counters of network requests made, acquisitions served by a lingering network, and
+    // the total time spent lingering
+    private int mNetworkRequestCount;
+    private int mLingerReuseCount;
+    private long mTotalLingerMillis;
+
+    // Recent network setup latencies, as a ring buffer
+    private final long[] mSetupLatencies = new long[SETUP_LATENCY_HISTORY_SIZE];
+    private int mSetupLatencyCount;
+    // When the current network request started, 0 if not waiting for the network
+    private long mNetworkRequestStartTime;
+    // The timeout of the current network request
+    private int mNetworkRequestTimeoutMillis;
+    // Consecutive failures to get the network, and when the last one happened
+    private int mConsecutiveFailures;
+    private long mLastFailureTime;
+    // Counter of acquisitions failed fast without requesting the network
+    private int mFastFailCount;
+
+    // Release the network when it has lingered without being acquired again
+    private final Runnable mLingerExpiredRunnable = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (MmsNetworkManager.this) {
+                if (mLingerStartTime > 0 && mMmsRequestCount < 1) {
+                    LogUtil.d("MmsNetworkManager: linger expired, release network");
+                    releaseRequestLocked(mNetworkCallback);
+                }
+            }
+        }
+    };
+
+    // Fail the pending acquisitions if the network does not become available in time
+    private final Runnable mAcquireTimeoutRunnable = new Runnable() {
+        @Override
+        public void run() {
+            final List<NetworkAcquisition> timedOut;
+            synchronized (MmsNetworkManager.this) {
+                if (mNetwork != null || mPendingAcquisitions.isEmpty()) {
+                    return;
+                }
+                // Timed out, so release the request and fail
+                LogUtil.e("MmsNetworkManager: timed out");
+                onNetworkRequestFailedLocked();
+                timedOut = takePendingAcquisitionsLocked();
+                releaseRequestLocked(mNetworkCallback);
+            }
+            completeAcquisitions(timedOut,
+                    new MmsNetworkException("Acquiring network timed out"));
+        }
+    };
+
     /**
      * Network callback for our network request
      */
@@ -68,30 +139,44 @@ public class MmsNetworkManager {
         public void onAvailable(Network network) {
             super.onAvailable(network);
             LogUtil.i("NetworkCallbackListener.onAvailable: network=" + network);
+            final List<NetworkAcquisition> acquired;
             synchronized (MmsNetworkManager.this) {
+                if (mMmsHttpClient != null && !network.equals(mNetwork)) {
+                    // The pooled connections belong to the previous network
+                    mMmsHttpClient = null;
+                }
                 mNetwork = network;
-                MmsNetworkManager.this.notifyAll();
+                mHandler.removeCallbacks(mAcquireTimeoutRunnable);
+                onNetworkRequestSucceededLocked();
+                acquired = takePendingAcquisitionsLocked();
             }
+            // Continue the requests waiting for the network
+            completeAcquisitions(acquired, null/*failure*/);
         }
 
         @Override
         public void onLost(Network network) {
             super.onLost(network);
             LogUtil.w("NetworkCallbackListener.onLost: network=" + network);
+            final List<NetworkAcquisition> failed;
             synchronized (MmsNetworkManager.this) {
+                failed = takePendingAcquisitionsLocked();
                 releaseRequestLocked(this);
-                MmsNetworkManager.this.notifyAll();
             }
+            completeAcquisitions(failed, new MmsNetworkException("MMS network lost"));
         }
 
         @Override
         public void onUnavailable() {
             super.onUnavailable();
             LogUtil.w("NetworkCallbackListener.onUnavailable");
+            final List<NetworkAcquisition> failed;
             synchronized (MmsNetworkManager.this) {
+                onNetworkRequestFailedLocked();
+                failed = takePendingAcquisitionsLocked();
                 releaseRequestLocked(this);
-                MmsNetworkManager.this.notifyAll();
             }
+            completeAcquisitions(failed, new MmsNetworkException("MMS network unavailable"));
         }
     }
 
@@ -103,6 +188,8 @@ public class MmsNetworkManager {
         mConnectivityManager = null;
         mMmsHttpClient = null;
         mSubId = subId;
+        mHandler = new Handler(Looper.getMainLooper());
+        mLingerStartTime = 0;
         mNetworkRequest = new NetworkRequest.Builder()
                 .addTransportType(NetworkCapabilities.TRANSPORT_CELLULAR)
                 .addCapability(NetworkCapabilities.NET_CAPABILITY_MMS)
@@ -111,43 +198,75 @@ public class MmsNetworkManager {
     }
 
     /**
-     * Acquire the MMS network
+     * Acquire the MMS network asynchronously. The caller does not block while the network is
+     * being set up, and is notified through the returned handle instead. Once the acquisition
+     * completes successfully, the caller must call {@link #releaseNetwork(String)} when done.
      *
      * @param requestId request ID for logging
-     * @throws com.android.mms.service.exception.MmsNetworkException if we fail to acquire it
+     * @return The handle which completes when the network is available or can't be acquired
      */
-    public void acquireNetwork(final String requestId) throws MmsNetworkException {
+    public NetworkAcquisition acquireNetworkAsync(final String requestId) {
+        final NetworkAcquisition acquisition = new NetworkAcquisition();
+        boolean failed = false;
         synchronized (this) {
             mMmsRequestCount += 1;
-            if (mNetwork != null) {
-                // Already available
-                LogUtil.d(requestId, "MmsNetworkManager: already available");
-                return;
+            if (mLingerStartTime > 0) {
+                // Reuse the lingering network instead of releasing it
+                LogUtil.d(requestId, "MmsNetworkManager: reuse lingering network");
+                stopLingeringLocked();
+                mLingerReuseCount++;
             }
-            // Not available, so start a new request if not done yet
-            if (mNetworkCallback == null) {
-                LogUtil.d(requestId, "MmsNetworkManager: start new network request");
-                startNewNetworkRequestLocked();
-            }
-            final long shouldEnd = SystemClock.elapsedRealtime() + NETWORK_ACQUIRE_TIMEOUT_MILLIS;
-            long waitTime = NETWORK_ACQUIRE_TIMEOUT_MILLIS;
-            while (waitTime > 0) {
-                try {
-                    this.wait(waitTime);
-                } catch (InterruptedException e) {
-                    LogUtil.w(requestId, "MmsNetworkManager: acquire network wait interrupted");
+            if (mNetwork == null) {
+                // Not available, so start a new request if not done yet
+                if (mNetworkCallback == null) {
+                    if (shouldFailFastLocked()) {
+                        // The network has been unavailable repeatedly, so don't block
+                        // the request for the whole timeout again
+                        LogUtil.w(requestId, "MmsNetworkManager: fail fast after "
+                                + mConsecutiveFailures + " failures");
+                        mMmsRequestCount -= 1;
+                        mFastFailCount++;
+                        failed = true;
+                    } else {
+                        LogUtil.d(requestId, "MmsNetworkManager: start new network request");
+                        startNewNetworkRequestLocked();
+                    }
                 }
-                if (mNetwork != null) {
-                    // Success
-                    return;
+                if (!failed) {
+                    mPendingAcquisitions.add(acquisition);
+                    return acquisition;
                 }
-                // Calculate remaining waiting time to make sure we wait the full timeout period
-                waitTime = shouldEnd - SystemClock.elapsedRealtime();
             }
-            // Timed out, so release the request and fail
-            LogUtil.e(requestId, "MmsNetworkManager: timed out");
-            releaseRequestLocked(mNetworkCallback);
-            throw new MmsNetworkException("Acquiring network timed out");
+        }
+        if (failed) {
+            acquisition.complete(new MmsNetworkException("MMS network repeatedly unavailable"));
+            return acquisition;
+        }
+        // Already available
+        LogUtil.d(requestId, "MmsNetworkManager: already available");
+        acquisition.complete(null/*failure*/);
+        return acquisition;
+    }
+
+    /**
+     * Cancel an acquisition which is still waiting for the network, so that it never
+     * completes. The network request is released if nobody else is waiting for it.
+     *
+     * @param acquisition the acquisition to cancel
+     * @param requestId request ID for logging
+     * @return true if cancelled, false if the acquisition has completed or is completing
+     */
+    public boolean cancelAcquisition(NetworkAcquisition acquisition, String requestId) {
+        synchronized (this) {
+            if (!mPendingAcquisitions.remove(acquisition)) {
+                return false;
+            }
+            mMmsRequestCount -= 1;
+            LogUtil.d(requestId, "MmsNetworkManager: cancel, count=" + mMmsRequestCount);
+            if (mMmsRequestCount < 1 && mNetwork == null) {
+                releaseRequestLocked(mNetworkCallback);
+            }
+            return true;
         }
     }
 
@@ -162,7 +281,15 @@ public class MmsNetworkManager {
                 mMmsRequestCount -= 1;
                 LogUtil.d(requestId, "MmsNetworkManager: release, count=" + mMmsRequestCount);
                 if (mMmsRequestCount < 1) {
-                    releaseRequestLocked(mNetworkCallback);
+                    final int lingerMillis = getNetworkLingerMillis();
+                    if (mNetwork != null && lingerMillis > 0) {
+                        // Keep the network for a while for requests arriving shortly after
+                        LogUtil.d(requestId, "MmsNetworkManager: linger " + lingerMillis + "ms");
+                        mLingerStartTime = SystemClock.elapsedRealtime();
+                        mHandler.postDelayed(mLingerExpiredRunnable, lingerMillis);
+                    } else {
+                        releaseRequestLocked(mNetworkCallback);
+                    }
                 }
             }
         }
@@ -173,9 +300,91 @@ public class MmsNetworkManager {
      */
     private void startNewNetworkRequestLocked() {
         final ConnectivityManager connectivityManager = getConnectivityManager();
+        mNetworkRequestCount++;
         mNetworkCallback = new NetworkRequestCallback();
+        mNetworkRequestStartTime = SystemClock.elapsedRealtime();
+        mNetworkRequestTimeoutMillis = getNetworkRequestTimeoutMillisLocked();
+        LogUtil.d("MmsNetworkManager: request timeout " + mNetworkRequestTimeoutMillis + "ms");
         connectivityManager.requestNetwork(
-                mNetworkRequest, mNetworkCallback, NETWORK_REQUEST_TIMEOUT_MILLIS);
+                mNetworkRequest, mNetworkCallback, mNetworkRequestTimeoutMillis);
+        mHandler.postDelayed(mAcquireTimeoutRunnable,
+                mNetworkRequestTimeoutMillis + NETWORK_ACQUIRE_TIMEOUT_MARGIN_MILLIS);
+    }
+
+    /**
+     * Get the network request timeout, learned from the recent network setup latencies and
+     * bounded by the carrier config
+     */
+    private int getNetworkRequestTimeoutMillisLocked() {
+        final MmsConfig config = MmsConfigManager.getInstance().getMmsConfigSnapshotBySubId(mSubId);
+        final int maxTimeout = config != null ? config.getNetworkAcquireTimeoutMaxMillis()
+                : MmsConfigManager.DEFAULT_NETWORK_ACQUIRE_TIMEOUT_MAX_MILLIS;
+        final int minTimeout = Math.min(maxTimeout, config != null
+                ? config.getNetworkAcquireTimeoutMinMillis()
+                : MmsConfigManager.DEFAULT_NETWORK_ACQUIRE_TIMEOUT_MIN_MILLIS);
+        if (mSetupLatencyCount < 1) {
+            return maxTimeout;
+        }
+        long slowest = 0;
+        for (int i = 0; i < Math.min(mSetupLatencyCount, mSetupLatencies.length); i++) {
+            slowest = Math.max(slowest, mSetupLatencies[i]);
+        }
+        final long learned = slowest * SETUP_LATENCY_TIMEOUT_MULTIPLIER;
+        return (int) Math.max(minTimeout, Math.min(maxTimeout, learned));
+    }
+
+    /**
+     * Record the setup latency of a successful network request
+     */
+    private void onNetworkRequestSucceededLocked() {
+        if (mNetworkRequestStartTime > 0) {
+            final long latency = SystemClock.elapsedRealtime() - mNetworkRequestStartTime;
+            LogUtil.d("MmsNetworkManager: network available in " + latency + "ms");
+            mSetupLatencies[mSetupLatencyCount % mSetupLatencies.length] = latency;
+            mSetupLatencyCount++;
+            mNetworkRequestStartTime = 0;
+        }
+        mConsecutiveFailures = 0;
+    }
+
+    /**
+     * Record a failure to get the network
+     */
+    private void onNetworkRequestFailedLocked() {
+        mNetworkRequestStartTime = 0;
+        mConsecutiveFailures++;
+        mLastFailureTime = SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * @return true if new requests should fail without requesting the network, because it
+     *         has been unavailable repeatedly and recently
+     */
+    private boolean shouldFailFastLocked() {
+        return mConsecutiveFailures >= FAST_FAIL_THRESHOLD
+                && SystemClock.elapsedRealtime() - mLastFailureTime < FAST_FAIL_WINDOW_MILLIS;
+    }
+
+    /**
+     * Take all the acquisitions waiting for the network, to complete them after unlocking
+     */
+    private List<NetworkAcquisition> takePendingAcquisitionsLocked() {
+        final List<NetworkAcquisition> acquisitions = new ArrayList<>(mPendingAcquisitions);
+        mPendingAcquisitions.clear();
+        return acquisitions;
+    }
+
+    /**
+     * Complete acquisitions. Must be called without holding the lock of this manager.
+     *
+     * @param acquisitions the acquisitions to complete
+     * @param failure the failure if the network could not be acquired, null on success
+     */
+    private static void completeAcquisitions(List<NetworkAcquisition> acquisitions,
+            MmsNetworkException failure) {
+        for (NetworkAcquisition acquisition : acquisitions) {
+            acquisition.complete(failure);
+        }
     }
 
     /**
@@ -206,12 +415,62 @@ public class MmsNetworkManager {
      * Reset the state
      */
     private void resetLocked() {
+        stopLingeringLocked();
+        mHandler.removeCallbacks(mAcquireTimeoutRunnable);
         mNetworkCallback = null;
         mNetwork = null;
         mMmsRequestCount = 0;
         mMmsHttpClient = null;
     }
 
+    /**
+     * Stop lingering if the network is lingering, and account the time spent
+     */
+    private void stopLingeringLocked() {
+        if (mLingerStartTime > 0) {
+            mHandler.removeCallbacks(mLingerExpiredRunnable);
+            mTotalLingerMillis += SystemClock.elapsedRealtime() - mLingerStartTime;
+            mLingerStartTime = 0;
+        }
+    }
+
+    /**
+     * @return How long to keep the network after the last request releases it
+     */
+    private int getNetworkLingerMillis() {
+        final MmsConfig config = MmsConfigManager.getInstance().getMmsConfigSnapshotBySubId(mSubId);
+        return config != null ? config.getNetworkLingerMillis()
+                : MmsConfigManager.DEFAULT_NETWORK_LINGER_MILLIS;
+    }
+
+    /**
+     * Dump the network state and counters
+     *
+     * @param writer the writer to dump to
+     * @param prefix the prefix of each line
+     */
+    public void dump(PrintWriter writer, String prefix) {
+        synchronized (this) {
+            writer.println(prefix + "network=" + mNetwork
+                    + " requestCount=" + mMmsRequestCount
+                    + " pendingAcquisitions=" + mPendingAcquisitions.size()
+                    + " lingering=" + (mLingerStartTime > 0));
+            writer.println(prefix + "networkRequests=" + mNetworkRequestCount
+                    + " lingerReuses=" + mLingerReuseCount
+                    + " totalLingerMs=" + mTotalLingerMillis);
+            final StringBuilder latencies = new StringBuilder();
+            for (int i = 0; i < Math.min(mSetupLatencyCount, mSetupLatencies.length); i++) {
+                latencies.append(i > 0 ? "," : "").append(mSetupLatencies[i]);
+            }
+            writer.println(prefix + "learnedRequestTimeoutMs="
+                    + getNetworkRequestTimeoutMillisLocked()
+                    + " setupLatenciesMs=[" + latencies + "]");
+            writer.println(prefix + "consecutiveFailures=" + mConsecutiveFailures
+                    + " failingFast=" + shouldFailFastLocked()
+                    + " fastFails=" + mFastFailCount);
+        }
+    }
+
     private ConnectivityManager getConnectivityManager() {
         if (mConnectivityManager == null) {
             mConnectivityManager = (ConnectivityManager) mContext.getSystemService(
@@ -221,7 +480,9 @@ public class MmsNetworkManager {
     }
 
     /**
-     * Get an MmsHttpClient for the current network
+     * Get an MmsHttpClient for the current network. The client is kept as long as the network,
+     * including while it lingers, so its pooled connections to the MMSC are reused across
+     * requests and retries.
      *
      * @return The MmsHttpClient instance
      */
@@ -22,21 +22,44 @@ import android.content.Context;
 import android.content.Intent;
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
 import android.service.carrier.CarrierMessagingService;
 import android.service.carrier.ICarrierMessagingCallback;
 import android.telephony.SmsManager;
-import android.telephony.TelephonyManager;
-import android.text.TextUtils;
 
 import com.android.mms.service.exception.ApnException;
+import com.android.mms.service.exception.MmsBudgetException;
 import com.android.mms.service.exception.MmsHttpException;
 import com.android.mms.service.exception.MmsNetworkException;
+import com.android.mms.service.exception.MmsTooLargeException;
+
+import java.io.OutputStream;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
  * Base class for MMS requests. This has the common logic of sending/downloading MMS.
  */
 public abstract class MmsRequest {
     private static final int RETRY_TIMES = 3;
+    // Delay before the first retry, doubled on each subsequent retry
+    private static final long RETRY_INITIAL_DELAY_SECS = 2;
+    // Maximum time to wait for the memory budget of the PDU before failing the attempt
+    private static final long BYTE_BUDGET_TIMEOUT_MILLIS = 60 * 1000;
+
+    // Request priority classes used to order pending requests, highest first
+    public static final int PRIORITY_INTERACTIVE_SEND = 0;
+    public static final int PRIORITY_USER_DOWNLOAD = 1;
+    public static final int PRIORITY_AUTO_DOWNLOAD = 2;
+    public static final int PRIORITY_BULK = 3;
+    public static final int PRIORITY_CLASS_COUNT = 4;
+
+    // Optional config override hint to set the priority class of a request
+    public static final String CONFIG_OVERRIDE_PRIORITY = "mmsRequestPriority";
 
     /**
      * Interface for certain functionalities from MmsService
@@ -49,11 +72,50 @@ public abstract class MmsRequest {
          */
         public void addSimRequest(MmsRequest request);
 
+        /**
+         * Enqueue an MMS request after a delay, without holding a worker thread while waiting
+         *
+         * @param request the request to enqueue
+         * @param delayMillis the delay before enqueuing the request
+         */
+        public void addSimRequestDelayed(MmsRequest request, long delayMillis);
+
+        /**
+         * Called when a download request has its result, so that no more duplicate downloads
+         * are coalesced into it
+         *
+         * @param request the finished download request
+         */
+        public void onDownloadFinished(DownloadRequest request);
+
+        /**
+         * Run the preparation of a request in the background, so that it can overlap with
+         * acquiring the MMS network
+         *
+         * @param preparation the preparation task
+         * @return the pending result of the preparation
+         * @throws RejectedExecutionException if too many preparations are pending
+         */
+        public Future<Boolean> submitPreparation(Callable<Boolean> preparation);
+
+        /**
+         * Resume a running request which was waiting for the MMS network, by executing it
+         * again on its request queue
+         *
+         * @param request the request to resume
+         */
+        public void resumeRequest(MmsRequest request);
+
         /*
          * @return Whether to auto persist received MMS
          */
         public boolean getAutoPersistingPref();
 
+        /**
+         * @return The service wide budget of PDU bytes held in memory by requests
+         */
+        public ByteBudget getByteBudget();
+
         /**
          * Read pdu (up to maxSize bytes) from supplied content uri
          * @param contentUri content uri from which to read
@@ -62,6 +124,23 @@ public abstract class MmsRequest {
          */
         public byte[] readPduFromContentUri(final Uri contentUri, final int maxSize);
 
+        /**
+         * Open the file descriptor of a pdu at supplied content uri
+         * @param contentUri content uri of the pdu
+         * @param mode the file mode, "r" to read or "w" to write
+         * @return the file descriptor (else null in case of error)
+         */
+        public ParcelFileDescriptor openPduFromContentUri(final Uri contentUri,
+                final String mode);
+
+        /**
+         * Open a stream writing pdu to supplied content uri, e.g. while it is downloaded. Each
+         * write has the same deadline as writePduToContentUri.
+         * @param contentUri content uri to which bytes should be written
+         * @return the output stream (else null in case of error)
+         */
+        public OutputStream openPduOutputStream(final Uri contentUri);
+
         /**
          * Write pdu to supplied content uri
          * @param contentUri content uri to which bytes should be written
@@ -77,12 +156,24 @@ public abstract class MmsRequest {
     protected int mSubId;
     // The creator app
     protected String mCreator;
-    // MMS config
-    protected Bundle mMmsConfig;
+    // MMS config snapshot, with the overrides applied
+    protected MmsConfig mMmsConfig;
     // MMS config overrides that will be applied to mMmsConfig when we eventually load it.
     protected Bundle mMmsConfigOverrides;
     // Context used to get TelephonyManager.
     protected Context mContext;
+    // The number of failed HTTP attempts so far
+    private int mFailedAttempts;
+    // Time spent in the last preparation, for logging
+    private volatile long mPrepareMillis;
+    // State of the current attempt while it is waiting for the MMS network
+    private NetworkAcquisition mNetworkAcquisition;
+    private Future<Boolean> mPreparation;
+    private long mAttemptStartTime;
+    // PDU bytes reserved from the service wide memory budget
+    private long mReservedBytes;
+    // Whether the memory budget was not available in time in the current attempt
+    private volatile boolean mBudgetExhausted;
 
     public MmsRequest(RequestManager requestManager, int subId, String creator,
             Bundle configOverrides, Context context) {
@@ -92,116 +183,291 @@ public abstract class MmsRequest {
         mMmsConfigOverrides = configOverrides;
         mMmsConfig = null;
         mContext = context;
+        mFailedAttempts = 0;
     }
 
     public int getSubId() {
         return mSubId;
     }
 
+    /**
+     * Get the priority class of this request, from the config override hint if the caller
+     * specified a valid one, or else from the type of the request
+     *
+     * @return the priority class, one of the PRIORITY_* constants
+     */
+    public int getPriority() {
+        if (mMmsConfigOverrides != null) {
+            final int priority = mMmsConfigOverrides.getInt(CONFIG_OVERRIDE_PRIORITY, -1);
+            if (priority >= 0 && priority < PRIORITY_CLASS_COUNT) {
+                return priority;
+            }
+        }
+        return getDefaultPriority();
+    }
+
     private boolean ensureMmsConfigLoaded() {
         if (mMmsConfig == null) {
             // Not yet retrieved from mms config manager. Try getting it.
-            final Bundle config = MmsConfigManager.getInstance().getMmsConfigBySubId(mSubId);
+            final MmsConfig config =
+                    MmsConfigManager.getInstance().getMmsConfigSnapshotBySubId(mSubId);
             if (config != null) {
-                mMmsConfig = config;
-                // TODO: Make MmsConfigManager authoritative for user agent and don't consult
-                // TelephonyManager.
-                final TelephonyManager telephonyManager =
-                        (TelephonyManager) mContext.getSystemService(Context.TELEPHONY_SERVICE);
-                final String userAgent = telephonyManager.getMmsUserAgent();
-                if (!TextUtils.isEmpty(userAgent)) {
-                    config.putString(SmsManager.MMS_CONFIG_USER_AGENT, userAgent);
-                }
-                final String userAgentProfileUrl = telephonyManager.getMmsUAProfUrl();
-                if (!TextUtils.isEmpty(userAgentProfileUrl)) {
-                    config.putString(SmsManager.MMS_CONFIG_UA_PROF_URL, userAgentProfileUrl);
-                }
-                // Apply overrides
-                if (mMmsConfigOverrides != null) {
-                    mMmsConfig.putAll(mMmsConfigOverrides);
-                }
+                // Apply overrides, the shared snapshot is copied only if there are any
+                mMmsConfig = config.withOverrides(mMmsConfigOverrides);
             }
         }
         return mMmsConfig != null;
     }
 
     /**
-     * Execute the request
+     * Execute the request. If the MMS network is not available yet, this returns without
+     * waiting for it, and the request manager resumes the request by calling this again once
+     * the network acquisition completes.
      *
      * @param context The context
      * @param networkManager The network manager to use
+     * @return false if the request is waiting for the network and will be resumed, true if
+     *         this attempt of the request is done
      */
-    public void execute(Context context, MmsNetworkManager networkManager) {
+    public boolean execute(Context context, MmsNetworkManager networkManager) {
         final String requestId = this.toString();
-        LogUtil.i(requestId, "Executing...");
-        int result = SmsManager.MMS_ERROR_UNSPECIFIED;
-        int httpStatusCode = 0;
-        byte[] response = null;
-        // TODO: add mms data channel check back to fast fail if no way to send mms,
-        // when telephony provides such API.
-        if (!ensureMmsConfigLoaded()) { // Check mms config
-            LogUtil.e(requestId, "mms config is not loaded yet");
-            result = SmsManager.MMS_ERROR_CONFIGURATION_ERROR;
-        } else if (!prepareForHttpRequest()) { // Prepare request, like reading pdu data from user
-            LogUtil.e(requestId, "Failed to prepare for request");
-            result = SmsManager.MMS_ERROR_IO_ERROR;
-        } else { // Execute
-            long retryDelaySecs = 2;
-            // Try multiple times of MMS HTTP request, depending on the error.
-            for (int i = 0; i < RETRY_TIMES; i++) {
-                try {
-                    networkManager.acquireNetwork(requestId);
-                    final String apnName = networkManager.getApnName();
-                    LogUtil.d(requestId, "APN name is " + apnName);
-                    try {
-                        ApnSettings apn = null;
+        if (mNetworkAcquisition == null) {
+            LogUtil.i(requestId, "Executing...");
+            // TODO: add mms data channel check back to fast fail if no way to send mms,
+            // when telephony provides such API.
+            if (!ensureMmsConfigLoaded()) { // Check mms config
+                LogUtil.e(requestId, "mms config is not loaded yet");
+                processResult(context, SmsManager.MMS_ERROR_CONFIGURATION_ERROR,
+                        null/*response*/, 0/*httpStatusCode*/);
+                return true;
+            }
+            mAttemptStartTime = SystemClock.elapsedRealtime();
+            mBudgetExhausted = false;
+            // Prepare request, like reading pdu data from user, while acquiring the network
+            try {
+                mPreparation = mRequestManager.submitPreparation(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() {
+                        final long prepareStartTime = SystemClock.elapsedRealtime();
                         try {
-                            apn = ApnSettings.load(context, apnName, mSubId, requestId);
-                        } catch (ApnException e) {
-                            // If no APN could be found, fall back to trying without the APN name
-                            if (apnName == null) {
-                                // If the APN name was already null then don't need to retry
-                                throw (e);
-                            }
-                            LogUtil.i(requestId, "No match with APN name: "
-                                    + apnName + ", try with no name");
-                            apn = ApnSettings.load(context, null, mSubId, requestId);
+                            return prepareForHttpRequest();
+                        } finally {
+                            mPrepareMillis = SystemClock.elapsedRealtime() - prepareStartTime;
                         }
-                        LogUtil.i(requestId, "Using " + apn.toString());
-                        response = doHttp(context, networkManager, apn);
-                        result = Activity.RESULT_OK;
-                        // Success
-                        break;
-                    } finally {
-                        networkManager.releaseNetwork(requestId);
                     }
-                } catch (ApnException e) {
-                    LogUtil.e(requestId, "APN failure", e);
-                    result = SmsManager.MMS_ERROR_INVALID_APN;
-                    break;
+                });
+            } catch (RejectedExecutionException e) {
+                // Too many requests are preparing, or the service is destroyed
+                LogUtil.e(requestId, "Can not prepare for request, rejected");
+                processResult(context, SmsManager.MMS_ERROR_UNSPECIFIED, null/*response*/,
+                        0/*httpStatusCode*/);
+                return true;
+            }
+            mNetworkAcquisition = networkManager.acquireNetworkAsync(requestId);
+            if (!mNetworkAcquisition.isDone()) {
+                // Don't hold on to the worker thread while the network is being set up
+                LogUtil.d(requestId, "Waiting for MMS network");
+                mNetworkAcquisition.setListener(new Runnable() {
+                    @Override
+                    public void run() {
+                        mRequestManager.resumeRequest(MmsRequest.this);
+                    }
+                });
+                return false;
+            }
+        } else {
+            LogUtil.i(requestId, "Resuming...");
+        }
+        final NetworkAcquisition acquisition = mNetworkAcquisition;
+        final Future<Boolean> preparation = mPreparation;
+        mNetworkAcquisition = null;
+        mPreparation = null;
+        executeWithNetwork(context, networkManager, acquisition, preparation);
+        return true;
+    }
+
+    /**
+     * Fail the request when the request manager can no longer run it, e.g. after the service
+     * is destroyed. A network acquisition still waiting is cancelled, and the network is
+     * released if this attempt acquired it. This blocks on the preparation and on provider
+     * I/O, so it must not be called with the request manager locked.
+     *
+     * @param context The context
+     * @param networkManager The network manager of the request
+     */
+    public void abandon(Context context, MmsNetworkManager networkManager) {
+        final String requestId = this.toString();
+        final NetworkAcquisition acquisition = mNetworkAcquisition;
+        if (acquisition != null) {
+            if (networkManager.cancelAcquisition(acquisition, requestId)) {
+                LogUtil.d(requestId, "Cancelled network acquisition");
+            } else if (!acquisition.isDone()) {
+                // Being completed right now, the request is resumed and abandoned again then
+                return;
+            } else {
+                try {
+                    acquisition.get();
+                    networkManager.releaseNetwork(requestId);
                 } catch (MmsNetworkException e) {
-                    LogUtil.e(requestId, "MMS network acquiring failure", e);
-                    result = SmsManager.MMS_ERROR_UNABLE_CONNECT_MMS;
-                    break;
-                } catch (MmsHttpException e) {
-                    LogUtil.e(requestId, "HTTP or network I/O failure", e);
-                    result = SmsManager.MMS_ERROR_HTTP_FAILURE;
-                    httpStatusCode = e.getStatusCode();
-                    // Retry
-                } catch (Exception e) {
-                    LogUtil.e(requestId, "Unexpected failure", e);
-                    result = SmsManager.MMS_ERROR_UNSPECIFIED;
-                    break;
+                    // The network was not acquired, nothing to release
                 }
+            }
+        }
+        LogUtil.e(requestId, "Request can not be run any more");
+        final Future<Boolean> preparation = mPreparation;
+        mNetworkAcquisition = null;
+        mPreparation = null;
+        if (preparation != null) {
+            // The prepared data may be used when processing the result
+            waitForPreparation(requestId, preparation);
+        }
+        processResult(context, SmsManager.MMS_ERROR_UNSPECIFIED, null/*response*/,
+                0/*httpStatusCode*/);
+    }
+
+    /**
+     * Execute the request once the network acquisition has completed
+     *
+     * @param context The context
+     * @param networkManager The network manager to use
+     * @param acquisition The completed network acquisition
+     * @param preparation The pending result of {@link #prepareForHttpRequest()}
+     */
+    private void executeWithNetwork(Context context, MmsNetworkManager networkManager,
+            NetworkAcquisition acquisition, Future<Boolean> preparation) {
+        final String requestId = this.toString();
+        int result = SmsManager.MMS_ERROR_UNSPECIFIED;
+        int httpStatusCode = 0;
+        byte[] response = null;
+        long networkMillis = 0;
+        long apnMillis = 0;
+        long prepareWaitMillis = 0;
+        long httpMillis = 0;
+        boolean retry = false;
+        try {
+            acquisition.get();
+            networkMillis = SystemClock.elapsedRealtime() - mAttemptStartTime;
+            final String apnName = networkManager.getApnName();
+            LogUtil.d(requestId, "APN name is " + apnName);
+            try {
+                long stageStartTime = SystemClock.elapsedRealtime();
+                ApnSettings apn = null;
                 try {
-                    Thread.sleep(retryDelaySecs * 1000, 0/*nano*/);
-                } catch (InterruptedException e) {}
-                retryDelaySecs <<= 1;
+                    apn = ApnSettingsCache.getInstance().load(
+                            context, apnName, mSubId, requestId);
+                } catch (ApnException e) {
+                    // If no APN could be found, fall back to trying without the APN name
+                    if (apnName == null) {
+                        // If the APN name was already null then don't need to retry
+                        throw (e);
+                    }
+                    LogUtil.i(requestId, "No match with APN name: "
+                            + apnName + ", try with no name");
+                    apn = ApnSettingsCache.getInstance().load(
+                            context, null, mSubId, requestId);
+                }
+                apnMillis = SystemClock.elapsedRealtime() - stageStartTime;
+                LogUtil.i(requestId, "Using " + apn.toString());
+                stageStartTime = SystemClock.elapsedRealtime();
+                final boolean prepared = waitForPreparation(requestId, preparation);
+                prepareWaitMillis = SystemClock.elapsedRealtime() - stageStartTime;
+                if (!prepared && mBudgetExhausted) {
+                    throw new MmsBudgetException("No memory to prepare for request");
+                } else if (!prepared) {
+                    LogUtil.e(requestId, "Failed to prepare for request");
+                    result = SmsManager.MMS_ERROR_IO_ERROR;
+                } else {
+                    stageStartTime = SystemClock.elapsedRealtime();
+                    response = doHttp(context, networkManager, apn);
+                    httpMillis = SystemClock.elapsedRealtime() - stageStartTime;
+                    result = Activity.RESULT_OK;
+                }
+            } finally {
+                networkManager.releaseNetwork(requestId);
+            }
+        } catch (ApnException e) {
+            LogUtil.e(requestId, "APN failure", e);
+            result = SmsManager.MMS_ERROR_INVALID_APN;
+        } catch (MmsNetworkException e) {
+            LogUtil.e(requestId, "MMS network acquiring failure", e);
+            result = SmsManager.MMS_ERROR_UNABLE_CONNECT_MMS;
+        } catch (MmsBudgetException e) {
+            // Retried the same way for sending and downloading, other requests may have
+            // released their budget by then
+            LogUtil.e(requestId, "No memory budget", e);
+            result = SmsManager.MMS_ERROR_IO_ERROR;
+            retry = true;
+        } catch (MmsTooLargeException e) {
+            // Not retried, the MMSC would send the same response again. Reported as an I/O
+            // error, since SmsManager has no result code for it.
+            LogUtil.e(requestId, "Response exceeds max message size, size=" + e.getSize(), e);
+            result = SmsManager.MMS_ERROR_IO_ERROR;
+        } catch (MmsHttpException e) {
+            LogUtil.e(requestId, "HTTP or network I/O failure", e);
+            result = SmsManager.MMS_ERROR_HTTP_FAILURE;
+            httpStatusCode = e.getStatusCode();
+            // Retry
+            retry = true;
+        } catch (Exception e) {
+            LogUtil.e(requestId, "Unexpected failure", e);
+            result = SmsManager.MMS_ERROR_UNSPECIFIED;
+        }
+        // The prepared data may be used when processing the result, so make sure the
+        // preparation is done in case we bailed out before waiting for it.
+        waitForPreparation(requestId, preparation);
+        LogUtil.i(requestId, "Stage timing: prepare=" + mPrepareMillis + "ms (overlapped)"
+                + ", network=" + networkMillis + "ms"
+                + ", apn=" + apnMillis + "ms"
+                + ", prepareWait=" + prepareWaitMillis + "ms"
+                + ", http=" + httpMillis + "ms"
+                + ", total=" + (SystemClock.elapsedRealtime() - mAttemptStartTime) + "ms");
+        if (retry) {
+            // Don't hold the memory budget through the backoff
+            releaseReservedBytes();
+            if (scheduleRetry(requestId)) {
+                // The result is processed by the last attempt
+                return;
             }
         }
         processResult(context, result, response, httpStatusCode);
     }
 
+    /**
+     * Wait for the preparation of the request to complete
+     *
+     * @param requestId request ID for logging
+     * @param preparation the pending result of {@link #prepareForHttpRequest()}
+     * @return true if preparation succeeds
+     */
+    private static boolean waitForPreparation(String requestId, Future<Boolean> preparation) {
+        try {
+            return preparation.get();
+        } catch (InterruptedException | ExecutionException e) {
+            LogUtil.e(requestId, "Preparation failure", e);
+        }
+        return false;
+    }
+
+    /**
+     * Schedule another attempt of this request after an exponential backoff delay. The request
+     * is re-submitted to the request manager when the delay expires, so that the worker thread
+     * and the MMS network are not held while waiting.
+     *
+     * @param requestId request ID for logging
+     * @return true if a retry is scheduled, false if there are no attempts left
+     */
+    private boolean scheduleRetry(String requestId) {
+        mFailedAttempts++;
+        if (mFailedAttempts >= RETRY_TIMES) {
+            return false;
+        }
+        final long delayMillis = (RETRY_INITIAL_DELAY_SECS << (mFailedAttempts - 1)) * 1000;
+        LogUtil.i(requestId, "Retry in " + delayMillis + "ms, failed attempts="
+                + mFailedAttempts);
+        mRequestManager.addSimRequestDelayed(this, delayMillis);
+        return true;
+    }
+
     /**
      * Process the result of the completed request, including updating the message status
      * in database and sending back the result via pending intents.
@@ -239,6 +505,55 @@ public abstract class MmsRequest {
         }
 
         revokeUriPermission(context);
+        releaseReservedBytes();
+    }
+
+    /**
+     * Reserve memory budget for a PDU of the given size held by this request, waiting for
+     * other requests to release theirs if needed. The reservation is released before waiting
+     * to retry, and when the result is processed. Not thread safe, the stages of a request run
+     * one after another.
+     *
+     * @param bytes the total number of bytes this request holds
+     * @return false if the budget was not available in time
+     */
+    protected boolean reserveBytes(long bytes) {
+        final ByteBudget budget = mRequestManager.getByteBudget();
+        bytes = Math.min(bytes, budget.getCapacity());
+        if (bytes <= mReservedBytes) {
+            return true;
+        }
+        try {
+            final long reserved =
+                    budget.acquire(bytes - mReservedBytes, BYTE_BUDGET_TIMEOUT_MILLIS);
+            if (reserved < 0) {
+                LogUtil.e(getRequestId(), "No memory budget for " + bytes + " bytes");
+                mBudgetExhausted = true;
+                return false;
+            }
+            mReservedBytes += reserved;
+            return true;
+        } catch (InterruptedException e) {
+            LogUtil.e(getRequestId(), "Interrupted waiting for memory budget", e);
+            mBudgetExhausted = true;
+            return false;
+        }
+    }
+
+    /**
+     * Shrink the memory budget reserved by this request, once the actual PDU size is known
+     *
+     * @param bytes the total number of bytes this request holds
+     */
+    protected void trimReservedBytes(long bytes) {
+        if (bytes < mReservedBytes) {
+            mRequestManager.getByteBudget().release(mReservedBytes - bytes);
+            mReservedBytes = Math.max(0, bytes);
+        }
+    }
+
+    private void releaseReservedBytes() {
+        trimReservedBytes(0);
     }
 
     /**
@@ -304,6 +619,11 @@ public abstract class MmsRequest {
      */
     protected abstract int getQueueType();
 
+    /**
+     * @return The priority class of this request when the caller does not specify one
+     */
+    protected abstract int getDefaultPriority();
+
     /**
      * Persist message into telephony if required (i.e. when auto-persisting is on or
      * the calling app is non-default sms app for sending)
@@ -316,7 +636,10 @@ public abstract class MmsRequest {
     protected abstract Uri persistIfRequired(Context context, int result, byte[] response);
 
     /**
-     * Prepare to make the HTTP request - will download message for sending
+     * Prepare to make the HTTP request - will download message for sending. This runs in the
+     * background while the MMS network is being acquired, at the start of every attempt.
+     * Implementations keep what they prepared across retries and return right away once
+     * prepared, so the work is done only once per request.
      * @return true if preparation succeeds (and request can proceed) else false
      */
     protected abstract boolean prepareForHttpRequest();
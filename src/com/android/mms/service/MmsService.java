@@ -19,12 +19,12 @@ package com.android.mms.service;
 import android.annotation.Nullable;
 import android.app.PendingIntent;
 import android.app.Service;
-import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
+import android.content.pm.PackageManager;
 import android.database.sqlite.SQLiteException;
 import android.net.Uri;
 import android.os.Binder;
@@ -33,12 +33,14 @@ import android.os.IBinder;
 import android.os.ParcelFileDescriptor;
 import android.os.Process;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.provider.Telephony;
 import android.service.carrier.CarrierMessagingService;
 import android.telephony.SmsManager;
 import android.telephony.SubscriptionManager;
 import android.telephony.TelephonyManager;
 import android.text.TextUtils;
+import android.util.ArrayMap;
 import android.util.SparseArray;
 
 import com.android.internal.telephony.IMms;
@@ -53,16 +55,28 @@ import com.google.android.mms.pdu.RetrieveConf;
 import com.google.android.mms.pdu.SendReq;
 import com.google.android.mms.util.SqliteWrapper;
 
+import java.io.FileDescriptor;
+import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.util.ArrayDeque;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Iterator;
 import java.util.List;
-import java.util.Queue;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * System service to process MMS API requests
@@ -71,6 +85,11 @@ public class MmsService extends Service implements MmsRequest.RequestManager {
     public static final int QUEUE_INDEX_SEND = 0;
     public static final int QUEUE_INDEX_DOWNLOAD = 1;
 
+    // The action to bind IMmsBulkImport instead of IMms
+    public static final String ACTION_BULK_IMPORT = "com.android.mms.service.BULK_IMPORT";
+    // The action to bind IMmsMessageStore instead of IMms
+    public static final String ACTION_MESSAGE_STORE = "com.android.mms.service.MESSAGE_STORE";
+
     private static final String SHARED_PREFERENCES_NAME = "mmspref";
     private static final String PREF_AUTO_PERSISTING = "autopersisting";
 
@@ -81,34 +100,157 @@ public class MmsService extends Service implements MmsRequest.RequestManager {
     // specific size limit should not be used (as it could be lower on some carriers).
     private static final int MAX_MMS_FILE_SIZE = 8 * 1024 * 1024;
 
+    // Number of threads transferring PDU with MMS apps
+    private static final int PDU_TRANSFER_THREADS = 4;
+    // Maximum number of PDU transfers waiting for a thread
+    private static final int PDU_TRANSFER_QUEUE_SIZE = 32;
+    // Idle time after which the PDU transfer threads exit
+    private static final long PDU_TRANSFER_KEEP_ALIVE_SECS = 60;
+
+    // Number of threads storing imported messages and drafts
+    private static final int MESSAGE_STORE_THREADS = 2;
+    // Maximum number of messages waiting to be stored
+    private static final int MESSAGE_STORE_QUEUE_SIZE = 64;
+    // Idle time after which the message store threads exit
+    private static final long MESSAGE_STORE_KEEP_ALIVE_SECS = 60;
+
+    // Number of threads reading and parsing the PDUs of bulk imported MMS
+    private static final int IMPORT_PARSE_THREADS = 4;
+    // Idle time after which the import parse threads exit
+    private static final long IMPORT_PARSE_KEEP_ALIVE_SECS = 60;
+
+    // Size of the chunks used to read PDUs of unknown size
+    private static final int PDU_BUFFER_SIZE = 64 * 1024;
+    // Maximum number of PDU chunks kept for reuse
+    private static final int MAX_POOLED_PDU_BUFFERS = 16;
+
     // The default number of threads allowed to run MMS requests in each queue
     public static final int THREAD_POOL_SIZE = 4;
 
-    // Pending requests that are waiting for the SIM to be available
-    // If a different SIM is currently used by previous requests, the following
-    // requests will stay in this queue until that SIM finishes its current requests in
-    // RequestQueue.
-    // Requests are not reordered. So, e.g. if current SIM is SIM1, a request for SIM2 will be
-    // blocked in the queue. And a later request for SIM1 will be appended to the queue, ordered
-    // after the request for SIM2, instead of being put into the running queue.
-    // TODO: persist this in case MmsService crashes
-    private final Queue<MmsRequest> mPendingSimRequestQueue = new ArrayDeque<>();
+    // Number of threads preparing requests
+    private static final int REQUEST_PREPARE_THREADS = 2 * THREAD_POOL_SIZE;
+    // Maximum number of request preparations waiting for a thread
+    private static final int REQUEST_PREPARE_QUEUE_SIZE = 32;
+    // Idle time after which the request prepare threads exit
+    private static final long REQUEST_PREPARE_KEEP_ALIVE_SECS = 60;
+
+    // The lane ID used for all requests when only one SIM can send/download MMS at a time
+    private static final int SINGLE_LANE_ID = SubscriptionManager.INVALID_SUBSCRIPTION_ID;
+
+    /**
+     * A lane of MMS requests, with its own pending queue and running request executors.
+     * Each lane runs requests for one SIM at a time. Depending on the device policy, either
+     * all SIMs share one lane or each SIM gets its own lane.
+     */
+    private static final class RequestLane {
+        // Pending requests that are waiting for the SIM to be available
+        // If a different SIM is currently used by previous requests, the following
+        // requests will stay in this queue until that SIM finishes its current requests in
+        // RequestQueue.
+        // Requests are ordered by priority class and then by arrival, so e.g. a user send is
+        // scheduled before earlier background downloads. If the next request is for a different
+        // SIM than the current one, it blocks the queue, and a later request for the current SIM
+        // is appended to the queue instead of being put into the running queue.
+        // TODO: persist this in case MmsService crashes
+        final PriorityRequestQueue mPendingSimRequestQueue = new PriorityRequestQueue();
+
+        // Running request queues, one thread pool per queue
+        // 0: send queue
+        // 1: download queue
+        // Requests waiting for a thread are taken by priority class with aging, in the same
+        // order as the pending queue.
+        final ExecutorService[] mRunningRequestExecutors = new ExecutorService[2];
+        // Arrival order of the requests handed to the running request queues, to break ties
+        long mNextSequence = 0;
+        // Wait metrics of the requests waiting for a thread
+        final RequestWaitStats mRunningWaitStats = new RequestWaitStats();
+
+        // The current SIM ID for the running requests of this lane
+        int mCurrentSubId = SubscriptionManager.INVALID_SUBSCRIPTION_ID;
+        // The current running MmsRequest count of this lane
+        int mRunningRequestCount = 0;
+
+        RequestLane() {
+            for (int i = 0; i < mRunningRequestExecutors.length; i++) {
+                mRunningRequestExecutors[i] = new ThreadPoolExecutor(
+                        THREAD_POOL_SIZE, THREAD_POOL_SIZE,
+                        0L, TimeUnit.MILLISECONDS,
+                        new PriorityBlockingQueue<Runnable>());
+            }
+        }
+
+        void shutdown() {
+            for (ExecutorService executor : mRunningRequestExecutors) {
+                executor.shutdown();
+            }
+        }
+    }
+
+    // Thread pool for transferring PDU with MMS apps. It is bounded, so that slow content
+    // providers can't make it spawn unlimited threads, and new transfers are rejected when too
+    // many are pending.
+    private final ThreadPoolExecutor mPduTransferExecutor = new ThreadPoolExecutor(
+            PDU_TRANSFER_THREADS, PDU_TRANSFER_THREADS,
+            PDU_TRANSFER_KEEP_ALIVE_SECS, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(PDU_TRANSFER_QUEUE_SIZE));
+    // PDU transfer metrics
+    private final AtomicInteger mRejectedPduTransferCount = new AtomicInteger();
+    private final AtomicInteger mTimedOutPduTransferCount = new AtomicInteger();
+
+    // Thread pool for storing imported messages and drafts through IMmsMessageStore, so that
+    // reading and persisting their PDUs does not hold binder threads
+    private final ThreadPoolExecutor mMessageStoreExecutor = new ThreadPoolExecutor(
+            MESSAGE_STORE_THREADS, MESSAGE_STORE_THREADS,
+            MESSAGE_STORE_KEEP_ALIVE_SECS, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(MESSAGE_STORE_QUEUE_SIZE));
+    private final AtomicInteger mRejectedMessageStoreCount = new AtomicInteger();
+
+    // Thread pool for reading and parsing the PDUs of bulk imported MMS, shared by all imports.
+    // Each import bounds the number of PDUs it reads ahead, so the queue is not bounded.
+    private final ThreadPoolExecutor mImportParseExecutor = new ThreadPoolExecutor(
+            IMPORT_PARSE_THREADS, IMPORT_PARSE_THREADS,
+            IMPORT_PARSE_KEEP_ALIVE_SECS, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>());
+
+    // Occupancy of binder threads by incoming calls
+    private final BinderOccupancy mBinderOccupancy = new BinderOccupancy();
+
+    // Budget of PDU bytes held in memory by running requests
+    private ByteBudget mByteBudget;
+
+    // Buffers for reading PDUs of unknown size in chunks
+    private final BufferPool mPduBufferPool =
+            new BufferPool(PDU_BUFFER_SIZE, MAX_POOLED_PDU_BUFFERS);
 
-    // Thread pool for transferring PDU with MMS apps
-    private final ExecutorService mPduTransferExecutor = Executors.newCachedThreadPool();
+    // Thread pool for preparing requests while the MMS network is being acquired. It has as
+    // many threads as the running request queues of a lane, and new preparations are rejected
+    // when too many are pending, failing their requests.
+    private final ThreadPoolExecutor mRequestPrepareExecutor = new ThreadPoolExecutor(
+            REQUEST_PREPARE_THREADS, REQUEST_PREPARE_THREADS,
+            REQUEST_PREPARE_KEEP_ALIVE_SECS, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(REQUEST_PREPARE_QUEUE_SIZE));
+    private final AtomicInteger mRejectedPrepareCount = new AtomicInteger();
+
+    // Timer for re-submitting requests after a delay, e.g. retries waiting for backoff
+    private final ScheduledExecutorService mDelayedRequestExecutor =
+            Executors.newSingleThreadScheduledExecutor();
 
     // A cache of MmsNetworkManager for SIMs
     private final SparseArray<MmsNetworkManager> mNetworkManagerCache = new SparseArray<>();
 
-    // The current SIM ID for the running requests. Only one SIM can send/download MMS at a time.
-    private int mCurrentSubId;
-    // The current running MmsRequest count.
-    private int mRunningRequestCount;
+    // In-flight downloads keyed by subId and content location, so that duplicate downloads of
+    // the same message can be coalesced into a single transfer
+    private final ArrayMap<String, DownloadRequest> mInFlightDownloads = new ArrayMap<>();
+
+    // Whether requests for different SIMs can run in parallel, each SIM in its own lane.
+    // Otherwise only one SIM can send/download MMS at a time.
+    private boolean mConcurrentSimRequests;
+
+    // Request lanes, keyed by subId, or by SINGLE_LANE_ID if SIMs can't run in parallel
+    private final SparseArray<RequestLane> mRequestLanes = new SparseArray<>();
 
-    // Running request queues, one thread pool per queue
-    // 0: send queue
-    // 1: download queue
-    private final ExecutorService[] mRunningRequestExecutors = new ExecutorService[2];
+    // The outcome of the last bulk import, for dumping
+    private BulkImporter.Result mLastBulkImportResult;
 
     private MmsNetworkManager getNetworkManager(int subId) {
         synchronized (mNetworkManagerCache) {
@@ -156,28 +298,33 @@ public class MmsService extends Service implements MmsRequest.RequestManager {
         public void sendMessage(int subId, String callingPkg, Uri contentUri,
                 String locationUrl, Bundle configOverrides, PendingIntent sentIntent)
                         throws RemoteException {
-            LogUtil.d("sendMessage");
-            enforceSystemUid();
+            final long binderStartTime = mBinderOccupancy.begin();
+            try {
+                LogUtil.d("sendMessage");
+                enforceSystemUid();
 
-            // Make sure the subId is correct
-            subId = checkSubId(subId);
+                // Make sure the subId is correct
+                subId = checkSubId(subId);
 
-            // Make sure the subId is active
-            if (!isActiveSubId(subId)) {
-                sendErrorInPendingIntent(sentIntent);
-                return;
-            }
+                // Make sure the subId is active
+                if (!isActiveSubId(subId)) {
+                    sendErrorInPendingIntent(sentIntent);
+                    return;
+                }
 
-            final SendRequest request = new SendRequest(MmsService.this, subId, contentUri,
-                    locationUrl, sentIntent, callingPkg, configOverrides, MmsService.this);
+                final SendRequest request = new SendRequest(MmsService.this, subId, contentUri,
+                        locationUrl, sentIntent, callingPkg, configOverrides, MmsService.this);
 
-            final String carrierMessagingServicePackage =
-                    getCarrierMessagingServicePackageIfExists();
-            if (carrierMessagingServicePackage != null) {
-                LogUtil.d(request.toString(), "sending message by carrier app");
-                request.trySendingByCarrierApp(MmsService.this, carrierMessagingServicePackage);
-            } else {
-                addSimRequest(request);
+                final String carrierMessagingServicePackage =
+                        getCarrierMessagingServicePackageIfExists();
+                if (carrierMessagingServicePackage != null) {
+                    LogUtil.d(request.toString(), "sending message by carrier app");
+                    request.trySendingByCarrierApp(MmsService.this, carrierMessagingServicePackage);
+                } else {
+                    addSimRequest(request);
+                }
+            } finally {
+                mBinderOccupancy.end("sendMessage", binderStartTime);
             }
         }
 
@@ -185,26 +332,33 @@ public class MmsService extends Service implements MmsRequest.RequestManager {
         public void downloadMessage(int subId, String callingPkg, String locationUrl,
                 Uri contentUri, Bundle configOverrides,
                 PendingIntent downloadedIntent) throws RemoteException {
-            LogUtil.d("downloadMessage: " + MmsHttpClient.redactUrlForNonVerbose(locationUrl));
-            enforceSystemUid();
+            final long binderStartTime = mBinderOccupancy.begin();
+            try {
+                LogUtil.d("downloadMessage: " + MmsHttpClient.redactUrlForNonVerbose(locationUrl));
+                enforceSystemUid();
 
-            // Make sure the subId is correct
-            subId = checkSubId(subId);
+                // Make sure the subId is correct
+                subId = checkSubId(subId);
 
-            // If the subId is no longer active it could be caused by
-            // an MVNO using multiple subIds, so we should try to
-            // download anyway.
-            // TODO: Fail fast when downloading will fail (i.e. SIM swapped)
-
-            final DownloadRequest request = new DownloadRequest(MmsService.this, subId, locationUrl,
-                    contentUri, downloadedIntent, callingPkg, configOverrides, MmsService.this);
-            final String carrierMessagingServicePackage =
-                    getCarrierMessagingServicePackageIfExists();
-            if (carrierMessagingServicePackage != null) {
-                LogUtil.d(request.toString(), "downloading message by carrier app");
-                request.tryDownloadingByCarrierApp(MmsService.this, carrierMessagingServicePackage);
-            } else {
-                addSimRequest(request);
+                // If the subId is no longer active it could be caused by
+                // an MVNO using multiple subIds, so we should try to
+                // download anyway.
+                // TODO: Fail fast when downloading will fail (i.e. SIM swapped)
+
+                final DownloadRequest request = new DownloadRequest(MmsService.this, subId,
+                        locationUrl, contentUri, downloadedIntent, callingPkg, configOverrides,
+                        MmsService.this);
+                final String carrierMessagingServicePackage =
+                        getCarrierMessagingServicePackageIfExists();
+                if (carrierMessagingServicePackage != null) {
+                    LogUtil.d(request.toString(), "downloading message by carrier app");
+                    request.tryDownloadingByCarrierApp(
+                            MmsService.this, carrierMessagingServicePackage);
+                } else if (!coalesceDownloadRequest(request)) {
+                    addSimRequest(request);
+                }
+            } finally {
+                mBinderOccupancy.end("downloadMessage", binderStartTime);
             }
         }
 
@@ -222,17 +376,27 @@ public class MmsService extends Service implements MmsRequest.RequestManager {
         @Override
         public Uri importTextMessage(String callingPkg, String address, int type, String text,
                 long timestampMillis, boolean seen, boolean read) {
-            LogUtil.d("importTextMessage");
-            enforceSystemUid();
-            return importSms(address, type, text, timestampMillis, seen, read, callingPkg);
+            final long binderStartTime = mBinderOccupancy.begin();
+            try {
+                LogUtil.d("importTextMessage");
+                enforceSystemUid();
+                return importSms(address, type, text, timestampMillis, seen, read, callingPkg);
+            } finally {
+                mBinderOccupancy.end("importTextMessage", binderStartTime);
+            }
         }
 
         @Override
         public Uri importMultimediaMessage(String callingPkg, Uri contentUri,
                 String messageId, long timestampSecs, boolean seen, boolean read) {
-            LogUtil.d("importMultimediaMessage");
-            enforceSystemUid();
-            return importMms(contentUri, messageId, timestampSecs, seen, read, callingPkg);
+            final long binderStartTime = mBinderOccupancy.begin();
+            try {
+                LogUtil.d("importMultimediaMessage");
+                enforceSystemUid();
+                return importMms(contentUri, messageId, timestampSecs, seen, read, callingPkg);
+            } finally {
+                mBinderOccupancy.end("importMultimediaMessage", binderStartTime);
+            }
         }
 
         @Override
@@ -312,17 +476,27 @@ public class MmsService extends Service implements MmsRequest.RequestManager {
         @Override
         public Uri addTextMessageDraft(String callingPkg, String address, String text)
                 throws RemoteException {
-            LogUtil.d("addTextMessageDraft");
-            enforceSystemUid();
-            return addSmsDraft(address, text, callingPkg);
+            final long binderStartTime = mBinderOccupancy.begin();
+            try {
+                LogUtil.d("addTextMessageDraft");
+                enforceSystemUid();
+                return addSmsDraft(address, text, callingPkg);
+            } finally {
+                mBinderOccupancy.end("addTextMessageDraft", binderStartTime);
+            }
         }
 
         @Override
         public Uri addMultimediaMessageDraft(String callingPkg, Uri contentUri)
                 throws RemoteException {
-            LogUtil.d("addMultimediaMessageDraft");
-            enforceSystemUid();
-            return addMmsDraft(contentUri, callingPkg);
+            final long binderStartTime = mBinderOccupancy.begin();
+            try {
+                LogUtil.d("addMultimediaMessageDraft");
+                enforceSystemUid();
+                return addMmsDraft(contentUri, callingPkg);
+            } finally {
+                mBinderOccupancy.end("addMultimediaMessageDraft", binderStartTime);
+            }
         }
 
         @Override
@@ -374,49 +548,209 @@ public class MmsService extends Service implements MmsRequest.RequestManager {
             LogUtil.e("Add running or pending: empty request");
             return;
         }
-        LogUtil.d("Current running=" + mRunningRequestCount + ", "
-                + "current subId=" + mCurrentSubId + ", "
-                + "pending=" + mPendingSimRequestQueue.size());
         synchronized (this) {
-            if (mPendingSimRequestQueue.size() > 0 ||
-                    (mRunningRequestCount > 0 && request.getSubId() != mCurrentSubId)) {
+            final RequestLane lane = getRequestLaneLocked(request.getSubId());
+            LogUtil.d("Current running=" + lane.mRunningRequestCount + ", "
+                    + "current subId=" + lane.mCurrentSubId + ", "
+                    + "pending=" + lane.mPendingSimRequestQueue.size());
+            if (lane.mPendingSimRequestQueue.size() > 0 ||
+                    (lane.mRunningRequestCount > 0
+                            && request.getSubId() != lane.mCurrentSubId)) {
                 LogUtil.d("Add request to pending queue."
                         + " Request subId=" + request.getSubId() + ","
-                        + " current subId=" + mCurrentSubId);
-                mPendingSimRequestQueue.add(request);
-                if (mRunningRequestCount <= 0) {
+                        + " current subId=" + lane.mCurrentSubId);
+                lane.mPendingSimRequestQueue.add(request);
+                if (lane.mRunningRequestCount <= 0) {
                     LogUtil.e("Nothing's running but queue's not empty");
                     // Nothing is running but we are accumulating on pending queue.
                     // This should not happen. But just in case...
-                    movePendingSimRequestsToRunningSynchronized();
+                    movePendingSimRequestsToRunningSynchronized(lane);
                 }
             } else {
-                addToRunningRequestQueueSynchronized(request);
+                addToRunningRequestQueueSynchronized(lane, request);
+            }
+        }
+    }
+
+    @Override
+    public void addSimRequestDelayed(final MmsRequest request, long delayMillis) {
+        if (request == null) {
+            LogUtil.e("Add delayed: empty request");
+            return;
+        }
+        LogUtil.d("Add request for subId " + request.getSubId() + " in " + delayMillis + "ms");
+        try {
+            mDelayedRequestExecutor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    addSimRequest(request);
+                }
+            }, delayMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // The service is destroyed
+            abandonRequest(request);
+        }
+    }
+
+    /**
+     * Coalesce a download request into an in-flight download of the same message if there is
+     * one, otherwise track it as the in-flight download of that message
+     *
+     * @param request the download request
+     * @return true if the request was coalesced and should not be run by itself
+     */
+    private boolean coalesceDownloadRequest(DownloadRequest request) {
+        final String key = request.getCoalescingKey();
+        if (key == null) {
+            return false;
+        }
+        synchronized (mInFlightDownloads) {
+            final DownloadRequest inFlight = mInFlightDownloads.get(key);
+            if (inFlight != null) {
+                LogUtil.i(request.toString(), "Coalesced into in-flight download " + inFlight);
+                inFlight.addCoalescedRequest(request);
+                return true;
+            }
+            mInFlightDownloads.put(key, request);
+        }
+        return false;
+    }
+
+    @Override
+    public Future<Boolean> submitPreparation(Callable<Boolean> preparation) {
+        try {
+            return mRequestPrepareExecutor.submit(preparation);
+        } catch (RejectedExecutionException e) {
+            mRejectedPrepareCount.incrementAndGet();
+            throw e;
+        }
+    }
+
+    @Override
+    public void onDownloadFinished(DownloadRequest request) {
+        final String key = request.getCoalescingKey();
+        if (key == null) {
+            return;
+        }
+        synchronized (mInFlightDownloads) {
+            if (mInFlightDownloads.get(key) == request) {
+                mInFlightDownloads.remove(key);
             }
         }
     }
 
-    private void addToRunningRequestQueueSynchronized(final MmsRequest request) {
+    /**
+     * Get the request lane for a SIM, creating it if needed
+     *
+     * @param subId the SIM ID of the request
+     * @return the lane which runs requests for this SIM
+     */
+    private RequestLane getRequestLaneLocked(int subId) {
+        final int laneId = mConcurrentSimRequests ? subId : SINGLE_LANE_ID;
+        RequestLane lane = mRequestLanes.get(laneId);
+        if (lane == null) {
+            LogUtil.d("Create request lane for subId " + laneId);
+            lane = new RequestLane();
+            mRequestLanes.put(laneId, lane);
+        }
+        return lane;
+    }
+
+    private void addToRunningRequestQueueSynchronized(final RequestLane lane,
+            final MmsRequest request) {
         LogUtil.d("Add request to running queue for subId " + request.getSubId());
         // Update current state of running requests
         final int queue = request.getQueueType();
-        if (queue < 0 || queue >= mRunningRequestExecutors.length) {
+        if (queue < 0 || queue >= lane.mRunningRequestExecutors.length) {
             LogUtil.e("Invalid request queue index for running request");
             return;
         }
-        mRunningRequestCount++;
-        mCurrentSubId = request.getSubId();
+        lane.mRunningRequestCount++;
+        lane.mCurrentSubId = request.getSubId();
+        executeOnLaneSynchronized(lane, request);
+    }
+
+    @Override
+    public void resumeRequest(MmsRequest request) {
+        LogUtil.d("Resume request for subId " + request.getSubId());
+        synchronized (this) {
+            // The request still counts as running on its lane while waiting for the network
+            executeOnLaneSynchronized(getRequestLaneLocked(request.getSubId()), request);
+        }
+    }
+
+    /**
+     * A request to run on a lane. While it waits for a thread of the lane, it is ordered by
+     * priority class with aging (see {@link PriorityRequestQueue#getRank(int, long)}), and
+     * then by arrival.
+     */
+    private abstract static class LaneTask implements Runnable, Comparable<LaneTask> {
+        final int mPriority;
+        final long mEnqueueTime;
+        private final long mRank;
+        private final long mSequence;
+
+        LaneTask(MmsRequest request, long sequence) {
+            mPriority = request.getPriority();
+            mEnqueueTime = SystemClock.elapsedRealtime();
+            mRank = PriorityRequestQueue.getRank(mPriority, mEnqueueTime);
+            mSequence = sequence;
+        }
+
+        @Override
+        public int compareTo(LaneTask other) {
+            if (mRank != other.mRank) {
+                return mRank < other.mRank ? -1 : 1;
+            }
+            return Long.compare(mSequence, other.mSequence);
+        }
+    }
+
+    private void executeOnLaneSynchronized(final RequestLane lane, final MmsRequest request) {
         // Send to the corresponding request queue for execution
-        mRunningRequestExecutors[queue].execute(new Runnable() {
+        try {
+            executeLaneTaskSynchronized(lane, request);
+        } catch (RejectedExecutionException e) {
+            // The service is destroyed, so the request won't run
+            lane.mRunningRequestCount--;
+            abandonRequest(request);
+        }
+    }
+
+    /**
+     * Fail a request which can't run because the service is destroyed. Its executors are shut
+     * down, and the callers may hold the service lock, so this is done on a thread of its own.
+     *
+     * @param request the request to abandon
+     */
+    private void abandonRequest(final MmsRequest request) {
+        new Thread("MmsService-abandon") {
+            @Override
+            public void run() {
+                request.abandon(MmsService.this, getNetworkManager(request.getSubId()));
+            }
+        }.start();
+    }
+
+    private void executeLaneTaskSynchronized(final RequestLane lane, final MmsRequest request) {
+        lane.mRunningRequestExecutors[request.getQueueType()].execute(
+                new LaneTask(request, lane.mNextSequence++) {
             @Override
             public void run() {
+                lane.mRunningWaitStats.record(request, mPriority,
+                        SystemClock.elapsedRealtime() - mEnqueueTime);
+                boolean done = true;
                 try {
-                    request.execute(MmsService.this, getNetworkManager(request.getSubId()));
+                    done = request.execute(MmsService.this,
+                            getNetworkManager(request.getSubId()));
                 } finally {
-                    synchronized (MmsService.this) {
-                        mRunningRequestCount--;
-                        if (mRunningRequestCount <= 0) {
-                            movePendingSimRequestsToRunningSynchronized();
+                    // A request waiting for the network keeps running until it is resumed
+                    if (done) {
+                        synchronized (MmsService.this) {
+                            lane.mRunningRequestCount--;
+                            if (lane.mRunningRequestCount <= 0) {
+                                movePendingSimRequestsToRunningSynchronized(lane);
+                            }
                         }
                     }
                 }
@@ -424,30 +758,155 @@ public class MmsService extends Service implements MmsRequest.RequestManager {
         });
     }
 
-    private void movePendingSimRequestsToRunningSynchronized() {
+    private void movePendingSimRequestsToRunningSynchronized(final RequestLane lane) {
         LogUtil.d("Schedule requests pending on SIM");
-        mCurrentSubId = SubscriptionManager.INVALID_SUBSCRIPTION_ID;
-        while (mPendingSimRequestQueue.size() > 0) {
-            final MmsRequest request = mPendingSimRequestQueue.peek();
+        lane.mCurrentSubId = SubscriptionManager.INVALID_SUBSCRIPTION_ID;
+        while (lane.mPendingSimRequestQueue.size() > 0) {
+            final MmsRequest request = lane.mPendingSimRequestQueue.peek();
             if (request != null) {
-                if (!SubscriptionManager.isValidSubscriptionId(mCurrentSubId)
-                        || mCurrentSubId == request.getSubId()) {
+                if (!SubscriptionManager.isValidSubscriptionId(lane.mCurrentSubId)
+                        || lane.mCurrentSubId == request.getSubId()) {
                     // First or subsequent requests with same SIM ID
-                    mPendingSimRequestQueue.remove();
-                    addToRunningRequestQueueSynchronized(request);
+                    lane.mPendingSimRequestQueue.remove(request);
+                    addToRunningRequestQueueSynchronized(lane, request);
                 } else {
                     // Stop if we see a different SIM ID
                     break;
                 }
             } else {
                 LogUtil.e("Schedule pending: found empty request");
-                mPendingSimRequestQueue.remove();
+                break;
+            }
+        }
+    }
+
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        if (checkCallingOrSelfPermission(android.Manifest.permission.DUMP)
+                != PackageManager.PERMISSION_GRANTED) {
+            writer.println("Permission Denial: can't dump MmsService from pid="
+                    + Binder.getCallingPid() + ", uid=" + Binder.getCallingUid());
+            return;
+        }
+        writer.println("MmsService:");
+        synchronized (this) {
+            writer.println("  concurrentSimRequests=" + mConcurrentSimRequests);
+            for (int i = 0; i < mRequestLanes.size(); i++) {
+                final RequestLane lane = mRequestLanes.valueAt(i);
+                writer.println("  Lane " + mRequestLanes.keyAt(i) + ":"
+                        + " running=" + lane.mRunningRequestCount
+                        + " currentSubId=" + lane.mCurrentSubId);
+                writer.println("    Pending on SIM:");
+                lane.mPendingSimRequestQueue.dump(writer, "      ");
+                writer.println("    Waiting for thread:");
+                lane.mRunningWaitStats.dump(writer, "      ");
+            }
+        }
+        writer.println("  PDU transfers:");
+        writer.println("    active=" + mPduTransferExecutor.getActiveCount()
+                + " queued=" + mPduTransferExecutor.getQueue().size()
+                + " completed=" + mPduTransferExecutor.getCompletedTaskCount()
+                + " rejected=" + mRejectedPduTransferCount.get()
+                + " timedOut=" + mTimedOutPduTransferCount.get());
+        writer.println("  Request preparation:");
+        writer.println("    active=" + mRequestPrepareExecutor.getActiveCount()
+                + " queued=" + mRequestPrepareExecutor.getQueue().size()
+                + " completed=" + mRequestPrepareExecutor.getCompletedTaskCount()
+                + " rejected=" + mRejectedPrepareCount.get());
+        writer.println("  Message store:");
+        writer.println("    active=" + mMessageStoreExecutor.getActiveCount()
+                + " queued=" + mMessageStoreExecutor.getQueue().size()
+                + " completed=" + mMessageStoreExecutor.getCompletedTaskCount()
+                + " rejected=" + mRejectedMessageStoreCount.get());
+        writer.println("  Binder calls:");
+        mBinderOccupancy.dump(writer, "    ");
+        writer.println("  APN settings cache:");
+        ApnSettingsCache.getInstance().dump(writer, "    ");
+        writer.println("  PDU memory budget:");
+        mByteBudget.dump(writer, "    ");
+        writer.println("  PDU buffers:");
+        mPduBufferPool.dump(writer, "    ");
+        synchronized (this) {
+            if (mLastBulkImportResult != null) {
+                writer.println("  Last bulk import: " + mLastBulkImportResult);
+            }
+        }
+        synchronized (mNetworkManagerCache) {
+            for (int i = 0; i < mNetworkManagerCache.size(); i++) {
+                writer.println("  Network for subId " + mNetworkManagerCache.keyAt(i) + ":");
+                mNetworkManagerCache.valueAt(i).dump(writer, "    ");
             }
         }
     }
 
+    private final IMmsBulkImport.Stub mBulkImportStub = new IMmsBulkImport.Stub() {
+        @Override
+        public Bundle importMessages(String callingPkg, List<Bundle> messages) {
+            final long binderStartTime = mBinderOccupancy.begin();
+            try {
+                LogUtil.d("importMessages: " + messages.size() + " messages");
+                enforceSystemUid();
+                final ArrayList<BulkImporter.Message> toImport =
+                        new ArrayList<>(messages.size());
+                for (Bundle message : messages) {
+                    toImport.add(BulkImporter.Message.fromBundle(message));
+                }
+                return MmsService.this.importMessages(toImport.iterator(), callingPkg)
+                        .toBundle();
+            } finally {
+                mBinderOccupancy.end("importMessages", binderStartTime);
+            }
+        }
+    };
+
+    private final IMmsMessageStore.Stub mMessageStoreStub = new IMmsMessageStore.Stub() {
+        @Override
+        public void importMultimediaMessage(final String callingPkg, final Uri contentUri,
+                final String messageId, final long timestampSecs, final boolean seen,
+                final boolean read, IMessageStoreCallback callback) {
+            final long binderStartTime = mBinderOccupancy.begin();
+            try {
+                LogUtil.d("importMultimediaMessage async");
+                enforceSystemUid();
+                storeMessageAsync("importMultimediaMessage", new Callable<Uri>() {
+                    @Override
+                    public Uri call() {
+                        return importMms(
+                                contentUri, messageId, timestampSecs, seen, read, callingPkg);
+                    }
+                }, callback);
+            } finally {
+                mBinderOccupancy.end("importMultimediaMessageAsync", binderStartTime);
+            }
+        }
+
+        @Override
+        public void addMultimediaMessageDraft(final String callingPkg, final Uri contentUri,
+                IMessageStoreCallback callback) {
+            final long binderStartTime = mBinderOccupancy.begin();
+            try {
+                LogUtil.d("addMultimediaMessageDraft async");
+                enforceSystemUid();
+                storeMessageAsync("addMultimediaMessageDraft", new Callable<Uri>() {
+                    @Override
+                    public Uri call() {
+                        return addMmsDraft(contentUri, callingPkg);
+                    }
+                }, callback);
+            } finally {
+                mBinderOccupancy.end("addMultimediaMessageDraftAsync", binderStartTime);
+            }
+        }
+    };
+
     @Override
     public IBinder onBind(Intent intent) {
+        if (intent != null && ACTION_BULK_IMPORT.equals(intent.getAction())) {
+            return mBulkImportStub;
+        }
+        if (intent != null && ACTION_MESSAGE_STORE.equals(intent.getAction())) {
+            return mMessageStoreStub;
+        }
         return mStub;
     }
 
@@ -461,50 +920,44 @@ public class MmsService extends Service implements MmsRequest.RequestManager {
         LogUtil.d("onCreate");
         // Load mms_config
         MmsConfigManager.getInstance().init(this);
+        // Cache APN settings until the carriers table or the subscriptions change
+        ApnSettingsCache.getInstance().init(this);
         // Initialize running request state
-        for (int i = 0; i < mRunningRequestExecutors.length; i++) {
-            mRunningRequestExecutors[i] = Executors.newFixedThreadPool(THREAD_POOL_SIZE);
-        }
         synchronized (this) {
-            mCurrentSubId = SubscriptionManager.INVALID_SUBSCRIPTION_ID;
-            mRunningRequestCount = 0;
+            mConcurrentSimRequests =
+                    getResources().getBoolean(R.bool.config_concurrent_sim_requests);
+            LogUtil.i("Concurrent SIM requests " + (mConcurrentSimRequests ? "on" : "off"));
+            mRequestLanes.clear();
         }
+        mPduTransferExecutor.allowCoreThreadTimeOut(true);
+        mMessageStoreExecutor.allowCoreThreadTimeOut(true);
+        mImportParseExecutor.allowCoreThreadTimeOut(true);
+        mRequestPrepareExecutor.allowCoreThreadTimeOut(true);
+        mByteBudget = new ByteBudget(getResources().getInteger(R.integer.config_pdu_memory_budget));
     }
 
     @Override
     public void onDestroy() {
         super.onDestroy();
         LogUtil.d("onDestroy");
-        for (ExecutorService executor : mRunningRequestExecutors) {
-            executor.shutdown();
+        mDelayedRequestExecutor.shutdown();
+        mRequestPrepareExecutor.shutdown();
+        synchronized (this) {
+            for (int i = 0; i < mRequestLanes.size(); i++) {
+                mRequestLanes.valueAt(i).shutdown();
+            }
         }
     }
 
     private Uri importSms(String address, int type, String text, long timestampMillis,
             boolean seen, boolean read, String creator) {
-        Uri insertUri = null;
-        switch (type) {
-            case SmsManager.SMS_TYPE_INCOMING:
-                insertUri = Telephony.Sms.Inbox.CONTENT_URI;
-
-                break;
-            case SmsManager.SMS_TYPE_OUTGOING:
-                insertUri = Telephony.Sms.Sent.CONTENT_URI;
-                break;
-        }
+        final Uri insertUri = getSmsImportUri(type);
         if (insertUri == null) {
             LogUtil.e("importTextMessage: invalid message type for importing: " + type);
             return null;
         }
-        final ContentValues values = new ContentValues(6);
-        values.put(Telephony.Sms.ADDRESS, address);
-        values.put(Telephony.Sms.DATE, timestampMillis);
-        values.put(Telephony.Sms.SEEN, seen ? 1 : 0);
-        values.put(Telephony.Sms.READ, read ? 1 : 0);
-        values.put(Telephony.Sms.BODY, text);
-        if (!TextUtils.isEmpty(creator)) {
-            values.put(Telephony.Mms.CREATOR, creator);
-        }
+        final ContentValues values =
+                getSmsImportValues(address, text, timestampMillis, seen, read, creator);
         // Clear the calling identity and query the database using the phone user id
         // Otherwise the AppOps check in TelephonyProvider would complain about mismatch
         // between the calling uid and the package uid
@@ -536,15 +989,7 @@ public class MmsService extends Service implements MmsRequest.RequestManager {
                 LogUtil.e("importMessage: can't parse input PDU");
                 return null;
             }
-            Uri insertUri = null;
-            if (pdu instanceof SendReq) {
-                insertUri = Telephony.Mms.Sent.CONTENT_URI;
-            } else if (pdu instanceof RetrieveConf ||
-                    pdu instanceof NotificationInd ||
-                    pdu instanceof DeliveryInd ||
-                    pdu instanceof ReadOrigInd) {
-                insertUri = Telephony.Mms.Inbox.CONTENT_URI;
-            }
+            final Uri insertUri = getMmsImportUri(pdu);
             if (insertUri == null) {
                 LogUtil.e("importMessage; invalid MMS type: " + pdu.getClass().getCanonicalName());
                 return null;
@@ -560,18 +1005,8 @@ public class MmsService extends Service implements MmsRequest.RequestManager {
                 LogUtil.e("importMessage: failed to persist message");
                 return null;
             }
-            final ContentValues values = new ContentValues(5);
-            if (!TextUtils.isEmpty(messageId)) {
-                values.put(Telephony.Mms.MESSAGE_ID, messageId);
-            }
-            if (timestampSecs != -1) {
-                values.put(Telephony.Mms.DATE, timestampSecs);
-            }
-            values.put(Telephony.Mms.READ, seen ? 1 : 0);
-            values.put(Telephony.Mms.SEEN, read ? 1 : 0);
-            if (!TextUtils.isEmpty(creator)) {
-                values.put(Telephony.Mms.CREATOR, creator);
-            }
+            final ContentValues values =
+                    getMmsImportValues(messageId, timestampSecs, seen, read, creator);
             if (SqliteWrapper.update(this, getContentResolver(), uri, values,
                     null/*where*/, null/*selectionArg*/) != 1) {
                 LogUtil.e("importMessage: failed to update message");
@@ -587,6 +1022,146 @@ public class MmsService extends Service implements MmsRequest.RequestManager {
         return null;
     }
 
+    private void storeMessageAsync(final String name, final Callable<Uri> store,
+            final IMessageStoreCallback callback) {
+        try {
+            mMessageStoreExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    Uri messageUri = null;
+                    try {
+                        messageUri = store.call();
+                    } catch (Exception e) {
+                        LogUtil.e(name + ": failed to store message", e);
+                    }
+                    notifyMessageStored(name, callback, messageUri);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            mRejectedMessageStoreCount.incrementAndGet();
+            LogUtil.e(name + ": too many pending messages to store");
+            notifyMessageStored(name, callback, null/*messageUri*/);
+        }
+    }
+
+    private static void notifyMessageStored(String name, IMessageStoreCallback callback,
+            Uri messageUri) {
+        if (callback == null) {
+            return;
+        }
+        try {
+            callback.onMessageStored(messageUri);
+        } catch (RemoteException e) {
+            LogUtil.e(name + ": failed to notify the caller", e);
+        }
+    }
+
+    /**
+     * Import messages in bulk, e.g. when restoring a backup. This blocks until all messages
+     * are imported, and does not check the caller.
+     *
+     * @param messages the messages to import
+     * @param creator the package importing the messages
+     * @return the outcome of the import
+     */
+    private BulkImporter.Result importMessages(Iterator<BulkImporter.Message> messages,
+            String creator) {
+        // Clear the calling identity and query the database using the phone user id
+        // Otherwise the AppOps check in TelephonyProvider would complain about mismatch
+        // between the calling uid and the package uid
+        final long identity = Binder.clearCallingIdentity();
+        try {
+            final BulkImporter.Result result =
+                    new BulkImporter(this, mImportParseExecutor, creator).run(messages);
+            synchronized (this) {
+                mLastBulkImportResult = result;
+            }
+            return result;
+        } finally {
+            Binder.restoreCallingIdentity(identity);
+        }
+    }
+
+    /**
+     * Read and parse the PDU of an MMS to import
+     *
+     * @param contentUri the content URI of the PDU
+     * @return the parsed PDU, or null if it can not be read or parsed
+     */
+    GenericPdu readImportedPdu(Uri contentUri) {
+        final byte[] pduData = readPduFromContentUri(contentUri, MAX_MMS_FILE_SIZE);
+        if (pduData == null || pduData.length < 1) {
+            LogUtil.e("readImportedPdu: empty PDU");
+            return null;
+        }
+        return parsePduForAnyCarrier(pduData);
+    }
+
+    /**
+     * @return the URI to insert an imported SMS of the type into, or null if the type is invalid
+     */
+    static Uri getSmsImportUri(int type) {
+        switch (type) {
+            case SmsManager.SMS_TYPE_INCOMING:
+                return Telephony.Sms.Inbox.CONTENT_URI;
+            case SmsManager.SMS_TYPE_OUTGOING:
+                return Telephony.Sms.Sent.CONTENT_URI;
+        }
+        return null;
+    }
+
+    /**
+     * @return the column values of an imported SMS
+     */
+    static ContentValues getSmsImportValues(String address, String text, long timestampMillis,
+            boolean seen, boolean read, String creator) {
+        final ContentValues values = new ContentValues(6);
+        values.put(Telephony.Sms.ADDRESS, address);
+        values.put(Telephony.Sms.DATE, timestampMillis);
+        values.put(Telephony.Sms.SEEN, seen ? 1 : 0);
+        values.put(Telephony.Sms.READ, read ? 1 : 0);
+        values.put(Telephony.Sms.BODY, text);
+        if (!TextUtils.isEmpty(creator)) {
+            values.put(Telephony.Mms.CREATOR, creator);
+        }
+        return values;
+    }
+
+    /**
+     * @return the URI to persist an imported MMS into, or null if its type can't be imported
+     */
+    static Uri getMmsImportUri(GenericPdu pdu) {
+        if (pdu instanceof SendReq) {
+            return Telephony.Mms.Sent.CONTENT_URI;
+        } else if (pdu instanceof RetrieveConf ||
+                pdu instanceof NotificationInd ||
+                pdu instanceof DeliveryInd ||
+                pdu instanceof ReadOrigInd) {
+            return Telephony.Mms.Inbox.CONTENT_URI;
+        }
+        return null;
+    }
+
+    /**
+     * @return the column values to update on a persisted imported MMS
+     */
+    static ContentValues getMmsImportValues(String messageId, long timestampSecs,
+            boolean seen, boolean read, String creator) {
+        final ContentValues values = new ContentValues(5);
+        if (!TextUtils.isEmpty(messageId)) {
+            values.put(Telephony.Mms.MESSAGE_ID, messageId);
+        }
+        if (timestampSecs != -1) {
+            values.put(Telephony.Mms.DATE, timestampSecs);
+        }
+        values.put(Telephony.Mms.READ, read ? 1 : 0);
+        values.put(Telephony.Mms.SEEN, seen ? 1 : 0);
+        if (!TextUtils.isEmpty(creator)) {
+            values.put(Telephony.Mms.CREATOR, creator);
+        }
+        return values;
+    }
+
     private static boolean isSmsMmsContentUri(Uri uri) {
         final String uriString = uri.toString();
         if (!uriString.startsWith("content://sms/") && !uriString.startsWith("content://mms/")) {
@@ -753,23 +1328,34 @@ public class MmsService extends Service implements MmsRequest.RequestManager {
      * @return Parsed PDU, null if failed to parse
      */
     private static GenericPdu parsePduForAnyCarrier(final byte[] data) {
-        GenericPdu pdu = null;
-        try {
-            pdu = (new PduParser(data, true/*parseContentDisposition*/)).parse();
-        } catch (RuntimeException e) {
-            LogUtil.w("parsePduForAnyCarrier: Failed to parse PDU with content disposition", e);
-        }
+        // Find out up front how the parts encode content disposition, so that the PDU is
+        // usually parsed once in the right way
+        final int convention = PduScanner.getContentDispositionConvention(data);
+        final boolean parseContentDisposition =
+                convention != PduScanner.CONTENT_DISPOSITION_WITHOUT_LENGTH;
+        GenericPdu pdu = parsePdu(data, parseContentDisposition);
         if (pdu == null) {
-            try {
-                pdu = (new PduParser(data, false/*parseContentDisposition*/)).parse();
-            } catch (RuntimeException e) {
-                LogUtil.w("parsePduForAnyCarrier: Failed to parse PDU without content disposition",
-                        e);
-            }
+            // The scan is a heuristic and may be wrong, so try the other way as well
+            pdu = parsePdu(data, !parseContentDisposition);
         }
         return pdu;
     }
 
+    private static GenericPdu parsePdu(final byte[] data, boolean parseContentDisposition) {
+        try {
+            return (new PduParser(data, parseContentDisposition)).parse();
+        } catch (RuntimeException e) {
+            LogUtil.w("parsePduForAnyCarrier: Failed to parse PDU "
+                    + (parseContentDisposition ? "with" : "without") + " content disposition", e);
+        }
+        return null;
+    }
+
+    @Override
+    public ByteBudget getByteBudget() {
+        return mByteBudget;
+    }
+
     @Override
     public boolean getAutoPersistingPref() {
         final SharedPreferences preferences = getSharedPreferences(
@@ -787,25 +1373,13 @@ public class MmsService extends Service implements MmsRequest.RequestManager {
         if (contentUri == null) {
             return null;
         }
-        Callable<byte[]> copyPduToArray = new Callable<byte[]>() {
+        PduTransferTask<byte[]> copyPduToArray = new PduTransferTask<byte[]>() {
             public byte[] call() {
                 ParcelFileDescriptor.AutoCloseInputStream inStream = null;
                 try {
-                    ContentResolver cr = MmsService.this.getContentResolver();
-                    ParcelFileDescriptor pduFd = cr.openFileDescriptor(contentUri, "r");
+                    ParcelFileDescriptor pduFd = openPduFd(contentUri, "r");
                     inStream = new ParcelFileDescriptor.AutoCloseInputStream(pduFd);
-                    // Request one extra byte to make sure file not bigger than maxSize
-                    byte[] tempBody = new byte[maxSize+1];
-                    int bytesRead = inStream.read(tempBody, 0, maxSize+1);
-                    if (bytesRead == 0) {
-                        LogUtil.e("Read empty PDU");
-                        return null;
-                    }
-                    if (bytesRead <= maxSize) {
-                        return Arrays.copyOf(tempBody, bytesRead);
-                    }
-                    LogUtil.e("PDU read is too large");
-                    return null;
+                    return readPdu(inStream, pduFd.getStatSize(), maxSize);
                 } catch (IOException ex) {
                     LogUtil.e("IO exception reading PDU", ex);
                     return null;
@@ -820,14 +1394,114 @@ public class MmsService extends Service implements MmsRequest.RequestManager {
             }
         };
 
-        final Future<byte[]> pendingResult = mPduTransferExecutor.submit(copyPduToArray);
+        return runPduTransfer("read", copyPduToArray, null/*failure*/);
+    }
+
+    /**
+     * Read a whole pdu from a stream. If the size is known from the file descriptor, the pdu
+     * is read into an array of that size. Otherwise, e.g. for pipes, it is read in chunks from
+     * the buffer pool, which are then copied into an array of the actual size.
+     * @param inStream the stream from which to read
+     * @param size the size of the pdu if known, else negative
+     * @param maxSize maximum number of bytes to read
+     * @return pdu bytes if succeeded else null
+     */
+    private byte[] readPdu(InputStream inStream, long size, int maxSize) throws IOException {
+        if (size > maxSize) {
+            LogUtil.e("PDU read is too large");
+            return null;
+        }
+        byte[] sizedBody = null;
+        int sizedLength = 0;
+        if (size > 0) {
+            sizedBody = new byte[(int) size];
+            sizedLength = readFully(inStream, sizedBody);
+            if (sizedLength < sizedBody.length) {
+                // Shorter than its file
+                return sizedLength > 0 ? Arrays.copyOf(sizedBody, sizedLength) : null;
+            }
+        }
+        // Read whatever is left in chunks, which also makes sure a sized pdu is at its end
+        final List<byte[]> chunks = new ArrayList<>();
         try {
-            return pendingResult.get(TASK_TIMEOUT_MS, TimeUnit.MILLISECONDS);
-        } catch (Exception e) {
-            // Typically a timeout occurred - cancel task
-            pendingResult.cancel(true);
+            int chunkedLength = 0;
+            while (true) {
+                final byte[] chunk = mPduBufferPool.acquire();
+                chunks.add(chunk);
+                final int bytesRead = readFully(inStream, chunk);
+                chunkedLength += bytesRead;
+                if (sizedLength + chunkedLength > maxSize) {
+                    LogUtil.e("PDU read is too large");
+                    return null;
+                }
+                if (bytesRead < chunk.length) {
+                    break;
+                }
+            }
+            if (sizedLength + chunkedLength == 0) {
+                LogUtil.e("Read empty PDU");
+                return null;
+            }
+            if (chunkedLength == 0) {
+                return sizedBody;
+            }
+            final byte[] pdu = sizedBody != null
+                    ? Arrays.copyOf(sizedBody, sizedLength + chunkedLength)
+                    : new byte[chunkedLength];
+            int offset = sizedLength;
+            for (byte[] chunk : chunks) {
+                final int length = Math.min(chunk.length, pdu.length - offset);
+                System.arraycopy(chunk, 0, pdu, offset, length);
+                offset += length;
+            }
+            return pdu;
+        } finally {
+            for (byte[] chunk : chunks) {
+                mPduBufferPool.release(chunk);
+            }
         }
-        return null;
+    }
+
+    /**
+     * Read from a stream until the buffer is full or the end of the stream
+     * @return the number of bytes read
+     */
+    private static int readFully(InputStream inStream, byte[] buffer) throws IOException {
+        int offset = 0;
+        while (offset < buffer.length) {
+            final int bytesRead = inStream.read(buffer, offset, buffer.length - offset);
+            if (bytesRead < 0) {
+                break;
+            }
+            offset += bytesRead;
+        }
+        return offset;
+    }
+
+    /**
+     * Open pdu file descriptor at content provider uri
+     * @param contentUri content provider uri of the pdu
+     * @param mode file mode, "r" to read or "w" to write
+     * @return file descriptor if succeeded else null
+     */
+    @Override
+    public ParcelFileDescriptor openPduFromContentUri(final Uri contentUri, final String mode) {
+        if (contentUri == null) {
+            return null;
+        }
+        PduTransferTask<ParcelFileDescriptor> openPdu =
+                new PduTransferTask<ParcelFileDescriptor>() {
+            public ParcelFileDescriptor call() {
+                try {
+                    return openPduFd(contentUri, mode);
+                } catch (IOException ex) {
+                    LogUtil.e("IO exception opening PDU", ex);
+                    return null;
+                }
+            }
+        };
+
+        return runPduTransfer("open", openPdu, null/*failure*/);
     }
 
     /**
@@ -840,12 +1514,11 @@ public class MmsService extends Service implements MmsRequest.RequestManager {
         if (contentUri == null || pdu == null) {
             return false;
         }
-        final Callable<Boolean> copyDownloadedPduToOutput = new Callable<Boolean>() {
+        final PduTransferTask<Boolean> copyDownloadedPduToOutput = new PduTransferTask<Boolean>() {
             public Boolean call() {
                 ParcelFileDescriptor.AutoCloseOutputStream outStream = null;
                 try {
-                    ContentResolver cr = MmsService.this.getContentResolver();
-                    ParcelFileDescriptor pduFd = cr.openFileDescriptor(contentUri, "w");
+                    ParcelFileDescriptor pduFd = openPduFd(contentUri, "w");
                     outStream = new ParcelFileDescriptor.AutoCloseOutputStream(pduFd);
                     outStream.write(pdu);
                     return Boolean.TRUE;
@@ -863,14 +1536,154 @@ public class MmsService extends Service implements MmsRequest.RequestManager {
             }
         };
 
-        final Future<Boolean> pendingResult =
-                mPduTransferExecutor.submit(copyDownloadedPduToOutput);
+        return runPduTransfer("write", copyDownloadedPduToOutput, Boolean.FALSE/*failure*/);
+    }
+
+    /**
+     * Open a stream writing pdu to content provider uri
+     * @param contentUri content provider uri to which bytes should be written
+     * @return output stream if succeeded else null
+     */
+    @Override
+    public OutputStream openPduOutputStream(final Uri contentUri) {
+        final ParcelFileDescriptor pduFd = openPduFromContentUri(contentUri, "w");
+        return pduFd != null ? new PduOutputStream(pduFd) : null;
+    }
+
+    /**
+     * A stream writing pdu to the file descriptor of a content provider uri, for a caller which
+     * produces the pdu gradually, e.g. a download. Each write runs as a pdu transfer task, so a
+     * write blocked on a slow provider times out and fails instead of blocking the caller.
+     */
+    private class PduOutputStream extends OutputStream {
+        private final ParcelFileDescriptor mPduFd;
+        private final OutputStream mOutStream;
+
+        PduOutputStream(ParcelFileDescriptor pduFd) {
+            mPduFd = pduFd;
+            mOutStream = new ParcelFileDescriptor.AutoCloseOutputStream(pduFd);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) throws IOException {
+            final PduTransferTask<Boolean> writePdu = new PduTransferTask<Boolean>() {
+                public Boolean call() {
+                    try {
+                        mOutStream.write(b, off, len);
+                        return Boolean.TRUE;
+                    } catch (IOException ex) {
+                        LogUtil.e("IO exception writing PDU", ex);
+                        return Boolean.FALSE;
+                    }
+                }
+            };
+            // Closed if the write times out, which fails any later write as well
+            writePdu.setPduFd(mPduFd);
+            if (!runPduTransfer("write", writePdu, Boolean.FALSE/*failure*/)) {
+                throw new IOException("Failed to write PDU");
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            mOutStream.close();
+        }
+    }
+
+    /**
+     * A task transferring pdu through a file descriptor of a content provider uri. If the task
+     * does not complete in time, its file descriptor is closed, so that a transfer blocked on a
+     * slow provider fails instead of holding on to its thread.
+     */
+    private abstract class PduTransferTask<T> implements Callable<T> {
+        private ParcelFileDescriptor mPduFd;
+        private boolean mAbandoned;
+
+        /**
+         * Open the file descriptor of this task
+         * @param contentUri content provider uri of the pdu
+         * @param mode file mode
+         * @return the file descriptor
+         */
+        protected ParcelFileDescriptor openPduFd(Uri contentUri, String mode)
+                throws FileNotFoundException {
+            final ParcelFileDescriptor pduFd =
+                    MmsService.this.getContentResolver().openFileDescriptor(contentUri, mode);
+            synchronized (this) {
+                if (!mAbandoned) {
+                    mPduFd = pduFd;
+                    return pduFd;
+                }
+            }
+            closeQuietly(pduFd);
+            throw new FileNotFoundException("PDU transfer abandoned");
+        }
+
+        /**
+         * Set the file descriptor of this task, when it is opened by the caller
+         * @param pduFd the file descriptor
+         */
+        void setPduFd(ParcelFileDescriptor pduFd) {
+            synchronized (this) {
+                mPduFd = pduFd;
+            }
+        }
+
+        /**
+         * Abandon this task and close its file descriptor, which fails a blocked transfer
+         */
+        void abandon() {
+            final ParcelFileDescriptor pduFd;
+            synchronized (this) {
+                mAbandoned = true;
+                pduFd = mPduFd;
+            }
+            closeQuietly(pduFd);
+        }
+    }
+
+    /**
+     * Run a pdu transfer task on the transfer executor and wait for its result until the
+     * deadline. The task is rejected right away if too many transfers are pending.
+     * @param name name of the transfer for logging
+     * @param task the transfer task
+     * @param failure the result on failure
+     * @return the result of the task, or failure
+     */
+    private <T> T runPduTransfer(String name, PduTransferTask<T> task, T failure) {
+        final Future<T> pendingResult;
+        try {
+            pendingResult = mPduTransferExecutor.submit(task);
+        } catch (RejectedExecutionException e) {
+            LogUtil.e("Too many pending PDU transfers, rejected " + name);
+            mRejectedPduTransferCount.incrementAndGet();
+            return failure;
+        }
         try {
             return pendingResult.get(TASK_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            LogUtil.e("PDU transfer timed out: " + name);
+            mTimedOutPduTransferCount.incrementAndGet();
         } catch (Exception e) {
-            // Typically a timeout occurred - cancel task
-            pendingResult.cancel(true);
+            LogUtil.e("PDU transfer failed: " + name, e);
+        }
+        // Stop the transfer if it has started, or cancel it if it is still queued
+        task.abandon();
+        pendingResult.cancel(true);
+        return failure;
+    }
+
+    private static void closeQuietly(ParcelFileDescriptor pduFd) {
+        if (pduFd != null) {
+            try {
+                pduFd.close();
+            } catch (IOException ex) {
+            }
         }
-        return false;
     }
 }
@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.service;
+
+import com.android.mms.service.exception.MmsNetworkException;
+
+/**
+ * Completion handle of an asynchronous MMS network acquisition, see
+ * {@link MmsNetworkManager#acquireNetworkAsync(String)}. It completes either when the MMS
+ * network becomes available or when acquiring it fails.
+ */
+public class NetworkAcquisition {
+    private boolean mDone;
+    private MmsNetworkException mFailure;
+    private Runnable mListener;
+
+    /**
+     * @return true if the acquisition has completed, successfully or not
+     */
+    public synchronized boolean isDone() {
+        return mDone;
+    }
+
+    /**
+     * Get the result of the completed acquisition
+     *
+     * @throws MmsNetworkException if the network could not be acquired
+     * @throws IllegalStateException if the acquisition has not completed yet
+     */
+    public synchronized void get() throws MmsNetworkException {
+        if (!mDone) {
+            throw new IllegalStateException("Network acquisition not completed");
+        }
+        if (mFailure != null) {
+            throw mFailure;
+        }
+    }
+
+    /**
+     * Set the listener to run when the acquisition completes. If it has already completed,
+     * the listener runs right away on the calling thread.
+     *
+     * @param listener the listener to run on completion
+     */
+    public void setListener(Runnable listener) {
+        synchronized (this) {
+            if (!mDone) {
+                mListener = listener;
+                return;
+            }
+        }
+        listener.run();
+    }
+
+    /**
+     * Complete the acquisition and run the listener if any. Must not be called with the
+     * network manager locked, since the listener may resume requests.
+     *
+     * @param failure the failure if the network could not be acquired, null on success
+     */
+    void complete(MmsNetworkException failure) {
+        final Runnable listener;
+        synchronized (this) {
+            if (mDone) {
+                return;
+            }
+            mDone = true;
+            mFailure = failure;
+            listener = mListener;
+            mListener = null;
+        }
+        if (listener != null) {
+            listener.run();
+        }
+    }
+}
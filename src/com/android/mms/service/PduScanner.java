@@ -0,0 +1,384 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.service;
+
+import com.google.android.mms.pdu.EncodedStringValue;
+import com.google.android.mms.pdu.GenericPdu;
+import com.google.android.mms.pdu.PduHeaders;
+import com.google.android.mms.pdu.PduParser;
+import com.google.android.mms.pdu.SendReq;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+/**
+ * Scans the structure of an encoded PDU without decoding or copying any of it, e.g. to find
+ * where its body starts before handing it to {@link PduParser}.
+ *
+ * Header values are skipped using the generic rule for WSP values, based on their first
+ * octet: a short length (0-30) or a length quote (31) followed by a uintvar length, a null
+ * terminated text (32-127), or a single octet short integer (128-255).
+ *
+ * The address header fields can also be rewritten in place, so that changing a recipient does
+ * not require composing the whole PDU again.
+ */
+public class PduScanner {
+    // Content-Disposition conventions of the parts of a PDU
+    // The PDU could not be scanned, or its parts use different conventions
+    public static final int CONTENT_DISPOSITION_UNKNOWN = 0;
+    // No part has a Content-Disposition header
+    public static final int CONTENT_DISPOSITION_NONE = 1;
+    // Content-Disposition values start with a value length, as in the WSP spec
+    public static final int CONTENT_DISPOSITION_WITH_LENGTH = 2;
+    // Content-Disposition values are encoded without a value length
+    public static final int CONTENT_DISPOSITION_WITHOUT_LENGTH = 3;
+
+    // PDU header field of Content-Type, which is always the last header
+    private static final int HEADER_CONTENT_TYPE = 0x84;
+    // Part header fields of Content-Disposition, current and deprecated encoding
+    private static final int PART_CONTENT_DISPOSITION = 0xC5;
+    private static final int PART_DEP_CONTENT_DISPOSITION = 0xAE;
+
+    // Address types appended to addresses, as done by PduComposer
+    private static final String REGEXP_PHONE_NUMBER_ADDRESS_TYPE = "\\+?[0-9|\\.|\\-]+";
+    private static final String REGEXP_EMAIL_ADDRESS_TYPE = "[a-zA-Z| ]*\\<{0,1}[a-zA-Z| ]+@{1}"
+            + "[a-zA-Z| ]+\\.{1}[a-zA-Z| ]+\\>{0,1}";
+    private static final String REGEXP_IPV6_ADDRESS_TYPE =
+            "[a-fA-F]{4}\\:{1}[a-fA-F0-9]{4}\\:{1}[a-fA-F0-9]{4}\\:{1}"
+            + "[a-fA-F0-9]{4}\\:{1}[a-fA-F0-9]{4}\\:{1}[a-fA-F0-9]{4}\\:{1}"
+            + "[a-fA-F0-9]{4}\\:{1}[a-fA-F0-9]{4}";
+    private static final String REGEXP_IPV4_ADDRESS_TYPE = "[0-9]{1,3}\\.{1}[0-9]{1,3}\\.{1}"
+            + "[0-9]{1,3}\\.{1}[0-9]{1,3}";
+    private static final String STRING_PHONE_NUMBER_ADDRESS_TYPE = "/TYPE=PLMN";
+    private static final String STRING_IPV4_ADDRESS_TYPE = "/TYPE=IPV4";
+    private static final String STRING_IPV6_ADDRESS_TYPE = "/TYPE=IPV6";
+
+    // WSP encoding limits
+    private static final int QUOTE = 127;
+    private static final int LENGTH_QUOTE = 31;
+    private static final int SHORT_INTEGER_MAX = 127;
+
+    private final byte[] mData;
+    private final int mLength;
+    private int mPos;
+
+    private PduScanner(byte[] data, int length) {
+        mData = data;
+        mLength = length;
+        mPos = 0;
+    }
+
+    /**
+     * Find the end of the header region of an encoded PDU. The Content-Type header is always
+     * the last header, and the body follows its value.
+     *
+     * @param data the beginning of the encoded PDU
+     * @param length the number of valid bytes in data
+     * @return the offset of the PDU body, or -1 if not found within length
+     */
+    public static int findHeaderEnd(byte[] data, int length) {
+        final PduScanner scanner = new PduScanner(data, length);
+        return scanner.skipPduHeaders() ? scanner.mPos : -1;
+    }
+
+    /**
+     * Parse only the header region of an encoded PDU. The body is parsed as a multipart body
+     * without any part, so none of the part data is decoded or copied.
+     *
+     * @param data the beginning of the encoded PDU
+     * @param headerEnd the end of the header region, see {@link #findHeaderEnd(byte[], int)}
+     * @param supportContentDisposition whether Content-Disposition is supported when parsing
+     * @return the parsed PDU without its body, or null if it can not be parsed
+     */
+    public static GenericPdu parseHeaders(byte[] data, int headerEnd,
+            boolean supportContentDisposition) {
+        // A zero part count as the body
+        final byte[] headers = Arrays.copyOf(data, headerEnd + 1);
+        headers[headerEnd] = 0;
+        return new PduParser(headers, supportContentDisposition).parse();
+    }
+
+    /**
+     * Rewrite the To, Cc and Bcc header fields of an encoded PDU from the addresses of a parsed
+     * SendReq, encoded the same way as PduComposer does. Every other header field is copied as
+     * is, and the body is left out so that the caller can send it after the new header region
+     * without copying it.
+     *
+     * @param data the beginning of the encoded PDU
+     * @param headerEnd the end of the header region, see {@link #findHeaderEnd(byte[], int)}
+     * @param pdu the PDU parsed from data, with its addresses updated
+     * @return the new header region, or null if the addresses can not be rewritten in place
+     */
+    public static byte[] replaceAddresses(byte[] data, int headerEnd, SendReq pdu) {
+        final EncodedStringValue[][] addresses = { pdu.getTo(), pdu.getCc(), pdu.getBcc() };
+        // The index of the next address of each type
+        final int[] next = new int[addresses.length];
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(headerEnd + 64);
+        final PduScanner scanner = new PduScanner(data, headerEnd);
+        while (scanner.mPos < headerEnd) {
+            final int start = scanner.mPos;
+            final int field = data[start] & 0xff;
+            if (field < 0x80) {
+                if (!scanner.skipText(headerEnd) || !scanner.skipText(headerEnd)) {
+                    return null;
+                }
+            } else {
+                scanner.mPos++;
+                if (!scanner.skipValue(headerEnd)) {
+                    return null;
+                }
+                final int type = getAddressIndex(field);
+                if (type >= 0) {
+                    // The parser keeps one address per field, in order
+                    if (addresses[type] == null || next[type] >= addresses[type].length
+                            || !appendAddress(out, field, addresses[type][next[type]++])) {
+                        return null;
+                    }
+                    continue;
+                }
+            }
+            out.write(data, start, scanner.mPos - start);
+        }
+        for (int i = 0; i < addresses.length; i++) {
+            if (addresses[i] != null && next[i] != addresses[i].length) {
+                return null;
+            }
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Find which Content-Disposition convention the parts of an encoded PDU use. Carriers differ
+     * on whether the value has a value length, and the PDU has to be parsed accordingly.
+     *
+     * @param data the encoded PDU
+     * @return one of the CONTENT_DISPOSITION_* conventions
+     */
+    public static int getContentDispositionConvention(byte[] data) {
+        final PduScanner scanner = new PduScanner(data, data.length);
+        if (!scanner.skipPduHeaders()) {
+            // No body at all if the headers end without a Content-Type
+            return scanner.mPos == data.length
+                    ? CONTENT_DISPOSITION_NONE : CONTENT_DISPOSITION_UNKNOWN;
+        }
+        if (scanner.mPos == data.length) {
+            return CONTENT_DISPOSITION_NONE;
+        }
+        final long count = scanner.readUintvar();
+        if (count < 0) {
+            return CONTENT_DISPOSITION_UNKNOWN;
+        }
+        int convention = CONTENT_DISPOSITION_NONE;
+        for (long i = 0; i < count; i++) {
+            final long headersLength = scanner.readUintvar();
+            final long dataLength = scanner.readUintvar();
+            if (headersLength < 0 || dataLength < 0
+                    || scanner.mPos + headersLength + dataLength > data.length) {
+                return CONTENT_DISPOSITION_UNKNOWN;
+            }
+            final int headersEnd = scanner.mPos + (int) headersLength;
+            final int partConvention = scanner.scanPartHeaders(headersEnd);
+            if (partConvention == CONTENT_DISPOSITION_UNKNOWN) {
+                return CONTENT_DISPOSITION_UNKNOWN;
+            }
+            if (partConvention != CONTENT_DISPOSITION_NONE) {
+                if (convention != CONTENT_DISPOSITION_NONE && convention != partConvention) {
+                    return CONTENT_DISPOSITION_UNKNOWN;
+                }
+                convention = partConvention;
+            }
+            scanner.mPos = headersEnd + (int) dataLength;
+        }
+        return convention;
+    }
+
+    // Index of an address header field in the addresses of replaceAddresses, or -1
+    private static int getAddressIndex(int field) {
+        switch (field) {
+            case PduHeaders.TO:
+                return 0;
+            case PduHeaders.CC:
+                return 1;
+            case PduHeaders.BCC:
+                return 2;
+            default:
+                return -1;
+        }
+    }
+
+    // Append an address header field as an encoded string value with its address type
+    private static boolean appendAddress(ByteArrayOutputStream out, int field,
+            EncodedStringValue address) {
+        final String type = getAddressTypeSuffix(address.getString());
+        final byte[] text = address.getTextString();
+        final int charset = address.getCharacterSet();
+        if (type == null || text == null || charset < 0 || charset > SHORT_INTEGER_MAX) {
+            return false;
+        }
+        final byte[] typeBytes = type.getBytes();
+        final boolean quoted = text.length > 0 && (text[0] & 0xff) > QUOTE;
+        // Charset, optional quote, text, type and null terminator
+        final int valueLength = 1 + (quoted ? 1 : 0) + text.length + typeBytes.length + 1;
+        out.write(field);
+        if (valueLength < LENGTH_QUOTE) {
+            out.write(valueLength);
+        } else {
+            out.write(LENGTH_QUOTE);
+            writeUintvar(out, valueLength);
+        }
+        out.write(charset | 0x80);
+        if (quoted) {
+            out.write(QUOTE);
+        }
+        out.write(text, 0, text.length);
+        out.write(typeBytes, 0, typeBytes.length);
+        out.write(0);
+        return true;
+    }
+
+    // The address type suffix PduComposer appends to an address, or null if unknown
+    private static String getAddressTypeSuffix(String address) {
+        if (address == null) {
+            return null;
+        }
+        if (address.matches(REGEXP_IPV4_ADDRESS_TYPE)) {
+            return STRING_IPV4_ADDRESS_TYPE;
+        } else if (address.matches(REGEXP_PHONE_NUMBER_ADDRESS_TYPE)) {
+            return STRING_PHONE_NUMBER_ADDRESS_TYPE;
+        } else if (address.matches(REGEXP_EMAIL_ADDRESS_TYPE)) {
+            return "";
+        } else if (address.matches(REGEXP_IPV6_ADDRESS_TYPE)) {
+            return STRING_IPV6_ADDRESS_TYPE;
+        }
+        return null;
+    }
+
+    private static void writeUintvar(ByteArrayOutputStream out, long value) {
+        int shift = 0;
+        while (shift < 28 && (value >>> (shift + 7)) != 0) {
+            shift += 7;
+        }
+        for (; shift > 0; shift -= 7) {
+            out.write((int) ((value >>> shift) & 0x7f) | 0x80);
+        }
+        out.write((int) (value & 0x7f));
+    }
+
+    // Skip the PDU headers up to and including Content-Type, return false if not found
+    private boolean skipPduHeaders() {
+        while (mPos < mLength) {
+            final int field = mData[mPos] & 0xff;
+            if (field < 0x80) {
+                // Application header: a text name followed by a text value
+                if (!skipText(mLength) || !skipText(mLength)) {
+                    return false;
+                }
+                continue;
+            }
+            mPos++;
+            if (!skipValue(mLength)) {
+                return false;
+            }
+            if (field == HEADER_CONTENT_TYPE) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Find the Content-Disposition convention of a part from its headers
+    private int scanPartHeaders(int end) {
+        // The content type comes first
+        if (!skipValue(end)) {
+            return CONTENT_DISPOSITION_UNKNOWN;
+        }
+        while (mPos < end) {
+            final int field = mData[mPos] & 0xff;
+            if (field < 0x80) {
+                if (!skipText(end) || !skipText(end)) {
+                    return CONTENT_DISPOSITION_UNKNOWN;
+                }
+                continue;
+            }
+            mPos++;
+            if (field == PART_CONTENT_DISPOSITION || field == PART_DEP_CONTENT_DISPOSITION) {
+                if (mPos >= end) {
+                    return CONTENT_DISPOSITION_UNKNOWN;
+                }
+                // A value length is at most 31, dispositions without it start with a token
+                return (mData[mPos] & 0xff) <= 31
+                        ? CONTENT_DISPOSITION_WITH_LENGTH : CONTENT_DISPOSITION_WITHOUT_LENGTH;
+            }
+            if (!skipValue(end)) {
+                return CONTENT_DISPOSITION_UNKNOWN;
+            }
+        }
+        return CONTENT_DISPOSITION_NONE;
+    }
+
+    // Skip a header value, return false if truncated
+    private boolean skipValue(int end) {
+        if (mPos >= end) {
+            return false;
+        }
+        final int first = mData[mPos] & 0xff;
+        if (first <= 30) {
+            // Short length
+            mPos += 1 + first;
+        } else if (first == 31) {
+            // Length quote, followed by a uintvar length
+            mPos++;
+            final long valueLength = readUintvar();
+            if (valueLength < 0 || valueLength > end - mPos) {
+                return false;
+            }
+            mPos += (int) valueLength;
+        } else if (first <= 127) {
+            return skipText(end);
+        } else {
+            // Short integer
+            mPos++;
+        }
+        return mPos <= end;
+    }
+
+    // Skip a null terminated text, return false if truncated
+    private boolean skipText(int end) {
+        while (mPos < end) {
+            if (mData[mPos++] == 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Read a uintvar, return -1 if truncated or too long
+    private long readUintvar() {
+        long value = 0;
+        for (int i = 0; i < 5; i++) {
+            if (mPos >= mLength) {
+                return -1;
+            }
+            final int octet = mData[mPos++] & 0xff;
+            value = (value << 7) | (octet & 0x7f);
+            if ((octet & 0x80) == 0) {
+                return value;
+            }
+        }
+        return -1;
+    }
+}
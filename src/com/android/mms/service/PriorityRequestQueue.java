@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.service;
+
+import android.os.SystemClock;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+
+/**
+ * Queue of pending MMS requests ordered by priority class (see {@link MmsRequest#getPriority()}).
+ * Requests in the same class are kept in FIFO order. To make sure lower classes still make
+ * progress, a request is raised by one class for every {@link #AGING_INTERVAL_MILLIS} it has
+ * been waiting in the queue, see {@link #getRank(int, long)}.
+ *
+ * This class is not thread safe. Callers are expected to synchronize access.
+ */
+public class PriorityRequestQueue {
+    // The time a request waits in the queue to be raised by one priority class
+    private static final long AGING_INTERVAL_MILLIS = 10 * 1000;
+
+    /**
+     * Get the rank of a request, which orders requests by priority class with aging. A lower
+     * rank runs first. Waiting one aging interval is worth one priority class, so a request
+     * enqueued an interval earlier ranks the same as one of the class above enqueued now. The
+     * rank doesn't change while the request waits, so it can order a heap.
+     *
+     * @param priority the priority class of the request
+     * @param enqueueTime the elapsed realtime when the request was enqueued
+     * @return the rank of the request
+     */
+    public static long getRank(int priority, long enqueueTime) {
+        return priority * AGING_INTERVAL_MILLIS + enqueueTime;
+    }
+
+    private static final class Entry {
+        final MmsRequest mRequest;
+        final int mPriority;
+        final long mEnqueueTime;
+        final long mRank;
+
+        Entry(MmsRequest request, long enqueueTime) {
+            mRequest = request;
+            mPriority = request.getPriority();
+            mEnqueueTime = enqueueTime;
+            mRank = getRank(mPriority, enqueueTime);
+        }
+    }
+
+    // Pending requests in enqueue order
+    private final ArrayList<Entry> mEntries = new ArrayList<>();
+
+    // Queue wait metrics
+    private final RequestWaitStats mWaitStats = new RequestWaitStats();
+
+    /**
+     * Add a request to the queue
+     *
+     * @param request the request to add
+     */
+    public void add(MmsRequest request) {
+        mEntries.add(new Entry(request, SystemClock.elapsedRealtime()));
+    }
+
+    /**
+     * @return the number of pending requests
+     */
+    public int size() {
+        return mEntries.size();
+    }
+
+    /**
+     * @return the request to run next, without removing it, or null if the queue is empty
+     */
+    public MmsRequest peek() {
+        final int index = findNext();
+        return index >= 0 ? mEntries.get(index).mRequest : null;
+    }
+
+    /**
+     * Remove a request from the queue, typically the one returned by {@link #peek()}
+     *
+     * @param request the request to remove
+     * @return true if the request was in the queue
+     */
+    public boolean remove(MmsRequest request) {
+        for (int i = 0; i < mEntries.size(); i++) {
+            final Entry entry = mEntries.get(i);
+            if (entry.mRequest == request) {
+                mEntries.remove(i);
+                mWaitStats.record(entry.mRequest, entry.mPriority,
+                        SystemClock.elapsedRealtime() - entry.mEnqueueTime);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Find the entry with the lowest rank. The earliest entry wins ties.
+    private int findNext() {
+        int bestIndex = -1;
+        long bestRank = Long.MAX_VALUE;
+        for (int i = 0; i < mEntries.size(); i++) {
+            final long rank = mEntries.get(i).mRank;
+            if (rank < bestRank) {
+                bestIndex = i;
+                bestRank = rank;
+            }
+        }
+        return bestIndex;
+    }
+
+    /**
+     * Dump the queue wait metrics
+     *
+     * @param writer the writer to dump to
+     * @param prefix the prefix of each line
+     */
+    public void dump(PrintWriter writer, String prefix) {
+        writer.println(prefix + "pending=" + mEntries.size());
+        mWaitStats.dump(writer, prefix);
+    }
+}
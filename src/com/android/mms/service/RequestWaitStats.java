@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.service;
+
+import java.io.PrintWriter;
+
+/**
+ * Wait time metrics of MMS requests in a queue, per priority class (see
+ * {@link MmsRequest#getPriority()}). This class is thread safe.
+ */
+public class RequestWaitStats {
+    private static final String[] PRIORITY_NAMES = {
+            "interactive-send",
+            "user-download",
+            "auto-download",
+            "bulk",
+    };
+
+    private final long[] mDequeuedCount = new long[MmsRequest.PRIORITY_CLASS_COUNT];
+    private final long[] mTotalWaitMillis = new long[MmsRequest.PRIORITY_CLASS_COUNT];
+    private final long[] mMaxWaitMillis = new long[MmsRequest.PRIORITY_CLASS_COUNT];
+
+    /**
+     * Record the time a request waited in the queue
+     *
+     * @param request the request leaving the queue
+     * @param priority the priority class of the request
+     * @param waitMillis the time the request waited
+     */
+    public synchronized void record(MmsRequest request, int priority, long waitMillis) {
+        mDequeuedCount[priority]++;
+        mTotalWaitMillis[priority] += waitMillis;
+        if (waitMillis > mMaxWaitMillis[priority]) {
+            mMaxWaitMillis[priority] = waitMillis;
+        }
+        LogUtil.d(request.toString(), "Waited " + waitMillis + "ms in queue, "
+                + "priority=" + PRIORITY_NAMES[priority]);
+    }
+
+    /**
+     * Dump the wait metrics
+     *
+     * @param writer the writer to dump to
+     * @param prefix the prefix of each line
+     */
+    public synchronized void dump(PrintWriter writer, String prefix) {
+        for (int i = 0; i < MmsRequest.PRIORITY_CLASS_COUNT; i++) {
+            final long count = mDequeuedCount[i];
+            writer.println(prefix + PRIORITY_NAMES[i] + ": dequeued=" + count
+                    + " avgWaitMs=" + (count > 0 ? mTotalWaitMillis[i] / count : 0)
+                    + " maxWaitMs=" + mMaxWaitMillis[i]);
+        }
+    }
+}
@@ -24,6 +24,7 @@ import android.content.Intent;
 import android.net.Uri;
 import android.os.Binder;
 import android.os.Bundle;
+import android.os.ParcelFileDescriptor;
 import android.os.RemoteException;
 import android.provider.Telephony;
 import android.service.carrier.CarrierMessagingService;
@@ -50,12 +51,25 @@ import com.google.android.mms.pdu.SendConf;
 import com.google.android.mms.pdu.SendReq;
 import com.google.android.mms.util.SqliteWrapper;
 
+import java.io.IOException;
+import java.io.OutputStream;
+
 /**
  * Request to send an MMS
  */
 public class SendRequest extends MmsRequest {
     private final Uri mPduUri;
     private byte[] mPduData;
+    // The header region sent in place of the one in mPduData, when its addresses are rewritten
+    private byte[] mPduHeader;
+    // The offset of the body in mPduData, sent as is after mPduHeader
+    private int mPduBodyOffset;
+    // The PDU streamed from the content URI, when it is not read into mPduData
+    private StreamingPdu mStreamingPdu;
+    // The PDU parsed once when preparing, with its addresses updated, kept for persisting it
+    private GenericPdu mParsedPdu;
+    // Whether the request has been prepared by a previous attempt
+    private volatile boolean mPrepared;
     private final String mLocationUrl;
     private final PendingIntent mSentIntent;
 
@@ -77,9 +91,30 @@ public class SendRequest extends MmsRequest {
             LogUtil.e(requestId, "MMS network is not ready!");
             throw new MmsHttpException(0/*statusCode*/, "MMS network is not ready");
         }
-        final GenericPdu parsedPdu = parsePdu();
-        notifyIfEmergencyContactNoThrow(parsedPdu);
-        updateDestinationAddress(parsedPdu);
+        if (mStreamingPdu != null) {
+            return mmsHttpClient.execute(
+                    mLocationUrl != null ? mLocationUrl : apn.getMmscUrl(),
+                    mStreamingPdu,
+                    MmsHttpClient.METHOD_POST,
+                    apn.isProxySet(),
+                    apn.getProxyAddress(),
+                    apn.getProxyPort(),
+                    mMmsConfig,
+                    mSubId,
+                    requestId);
+        }
+        if (mPduHeader != null) {
+            return mmsHttpClient.execute(
+                    mLocationUrl != null ? mLocationUrl : apn.getMmscUrl(),
+                    getSplicedPdu(),
+                    MmsHttpClient.METHOD_POST,
+                    apn.isProxySet(),
+                    apn.getProxyAddress(),
+                    apn.getProxyPort(),
+                    mMmsConfig,
+                    mSubId,
+                    requestId);
+        }
         return mmsHttpClient.execute(
                 mLocationUrl != null ? mLocationUrl : apn.getMmscUrl(),
                 mPduData,
@@ -100,7 +135,7 @@ public class SendRequest extends MmsRequest {
                 return null;
             }
             final boolean supportContentDisposition =
-                    mMmsConfig.getBoolean(SmsManager.MMS_CONFIG_SUPPORT_MMS_CONTENT_DISPOSITION);
+                    mMmsConfig.supportMmsContentDisposition();
             return new PduParser(mPduData, supportContentDisposition).parse();
         } catch (final Exception e) {
             LogUtil.w(requestId, "Failed to parse PDU raw data");
@@ -108,6 +143,30 @@ public class SendRequest extends MmsRequest {
         return null;
     }
 
+    /**
+     * Parse the headers of the pdu only, leaving the parts undecoded
+     * @return the pdu without its body, or the whole pdu if its headers can not be found
+     */
+    private GenericPdu parsePduHeaders() {
+        final String requestId = getRequestId();
+        if (mPduData == null) {
+            LogUtil.w(requestId, "Empty PDU raw data");
+            return null;
+        }
+        final int headerEnd = PduScanner.findHeaderEnd(mPduData, mPduData.length);
+        if (headerEnd < 0) {
+            return parsePdu();
+        }
+        try {
+            final boolean supportContentDisposition =
+                    mMmsConfig.supportMmsContentDisposition();
+            return PduScanner.parseHeaders(mPduData, headerEnd, supportContentDisposition);
+        } catch (final Exception e) {
+            LogUtil.w(requestId, "Failed to parse PDU headers");
+        }
+        return null;
+    }
+
     /**
      * If the MMS is being sent to an emergency number, the blocked number provider is notified
      * so that it can disable number blocking.
@@ -147,6 +206,17 @@ public class SendRequest extends MmsRequest {
         return MmsService.QUEUE_INDEX_SEND;
     }
 
+    @Override
+    protected int getDefaultPriority() {
+        return PRIORITY_INTERACTIVE_SEND;
+    }
+
+    @Override
+    public void processResult(Context context, int result, byte[] response, int httpStatusCode) {
+        super.processResult(context, result, response, httpStatusCode);
+        closeStreamingPdu();
+    }
+
     @Override
     protected Uri persistIfRequired(Context context, int result, byte[] response) {
         final String requestId = getRequestId();
@@ -162,9 +232,13 @@ public class SendRequest extends MmsRequest {
         final long identity = Binder.clearCallingIdentity();
         try {
             final boolean supportContentDisposition =
-                    mMmsConfig.getBoolean(SmsManager.MMS_CONFIG_SUPPORT_MMS_CONTENT_DISPOSITION);
-            // Persist the request PDU first
-            GenericPdu pdu = (new PduParser(mPduData, supportContentDisposition)).parse();
+                    mMmsConfig.supportMmsContentDisposition();
+            // Persist the request PDU first, as parsed when preparing the request
+            GenericPdu pdu = mParsedPdu;
+            mParsedPdu = null;
+            if (pdu == null) {
+                pdu = (new PduParser(getPduBytes(), supportContentDisposition)).parse();
+            }
             if (pdu == null) {
                 LogUtil.e(requestId, "persistIfRequired: can't parse input PDU");
                 return null;
@@ -246,15 +320,92 @@ public class SendRequest extends MmsRequest {
             return;
         }
 
-       boolean isUpdated = updateDestinationAddressPerType((SendReq)pdu, PduHeaders.TO);
-       isUpdated = updateDestinationAddressPerType((SendReq)pdu, PduHeaders.CC) || isUpdated;
-       isUpdated = updateDestinationAddressPerType((SendReq)pdu, PduHeaders.BCC) || isUpdated;
-
-       if (isUpdated) {
+       if (updateDestinationAddresses((SendReq) pdu)) {
            mPduData = new PduComposer(mContext, (SendReq)pdu).make();
        }
    }
 
+    /**
+     * Rewrite the address header fields of the pdu, in front of its untouched body. The new
+     * header region is sent before the body from the file of a streamed pdu, or before the body
+     * slice of the pdu held in memory.
+     * @param pdu the pdu parsed from the headers, with its addresses updated
+     * @return true if the addresses are rewritten
+     */
+    private boolean spliceDestinationAddresses(SendReq pdu) {
+        final String requestId = getRequestId();
+        if (mStreamingPdu != null) {
+            final byte[] header = mStreamingPdu.getHeader();
+            final byte[] newHeader = PduScanner.replaceAddresses(header, header.length, pdu);
+            if (newHeader == null) {
+                LogUtil.i(requestId, "spliceDestinationAddresses: can not rewrite headers");
+                return false;
+            }
+            mStreamingPdu.setHeader(newHeader);
+            return true;
+        }
+        if (mPduData == null) {
+            return false;
+        }
+        final int headerEnd = PduScanner.findHeaderEnd(mPduData, mPduData.length);
+        final byte[] newHeader =
+                headerEnd < 0 ? null : PduScanner.replaceAddresses(mPduData, headerEnd, pdu);
+        if (newHeader == null) {
+            LogUtil.i(requestId, "spliceDestinationAddresses: can not rewrite headers");
+            return false;
+        }
+        mPduHeader = newHeader;
+        mPduBodyOffset = headerEnd;
+        return true;
+    }
+
+    /**
+     * @return the pdu held in memory with its header region rewritten, written to the HTTP
+     *         request as the new header followed by the original body, without copying the body
+     */
+    private MmsHttpClient.RequestBody getSplicedPdu() {
+        final byte[] header = mPduHeader;
+        final byte[] data = mPduData;
+        final int bodyOffset = mPduBodyOffset;
+        return new MmsHttpClient.RequestBody() {
+            @Override
+            public long getLength() {
+                return header.length + (data.length - bodyOffset);
+            }
+
+            @Override
+            public void writeTo(OutputStream out) throws IOException {
+                out.write(header);
+                out.write(data, bodyOffset, data.length - bodyOffset);
+            }
+        };
+    }
+
+    /**
+     * @return the pdu held in memory as sent, only joined into one array when it is needed whole
+     */
+    private byte[] getPduBytes() {
+        if (mPduHeader == null) {
+            return mPduData;
+        }
+        final int bodyLength = mPduData.length - mPduBodyOffset;
+        final byte[] data = new byte[mPduHeader.length + bodyLength];
+        System.arraycopy(mPduHeader, 0, data, 0, mPduHeader.length);
+        System.arraycopy(mPduData, mPduBodyOffset, data, mPduHeader.length, bodyLength);
+        return data;
+    }
+
+    /**
+     * Update the To, Cc and Bcc addresses of the PDU
+     * @return true if any address is updated
+     */
+    private boolean updateDestinationAddresses(SendReq pdu) {
+        boolean isUpdated = updateDestinationAddressPerType(pdu, PduHeaders.TO);
+        isUpdated = updateDestinationAddressPerType(pdu, PduHeaders.CC) || isUpdated;
+        isUpdated = updateDestinationAddressPerType(pdu, PduHeaders.BCC) || isUpdated;
+        return isUpdated;
+    }
+
     private boolean updateDestinationAddressPerType(SendReq pdu, int type) {
         boolean isUpdated = false;
         EncodedStringValue[] recipientNumbers = null;
@@ -315,11 +466,61 @@ public class SendRequest extends MmsRequest {
         if (mPduData != null) {
             return true;
         }
-        final int bytesTobeRead = mMmsConfig.getInt(SmsManager.MMS_CONFIG_MAX_MESSAGE_SIZE);
+        final int bytesTobeRead = mMmsConfig.getMaxMessageSize();
         mPduData = mRequestManager.readPduFromContentUri(mPduUri, bytesTobeRead);
         return (mPduData != null);
     }
 
+    /**
+     * Read the pdu into memory, within the memory budget of the service
+     * @return true if pdu read successfully
+     */
+    private boolean readPduIntoMemory() {
+        if (mPduData == null && !reserveBytes(
+                mMmsConfig.getMaxMessageSize())) {
+            return false;
+        }
+        final boolean read = readPduFromContentUri();
+        // Keep the budget of the actual size only
+        trimReservedBytes(mPduData != null ? mPduData.length : 0);
+        return read;
+    }
+
+    /**
+     * Open the pdu for streaming from the file descriptor, and parse its headers
+     * @return the pdu parsed without its body, or null if the pdu can not be streamed
+     */
+    private GenericPdu openStreamingPdu() {
+        final String requestId = getRequestId();
+        final ParcelFileDescriptor pfd = mRequestManager.openPduFromContentUri(mPduUri, "r");
+        if (pfd == null) {
+            return null;
+        }
+        mStreamingPdu = StreamingPdu.open(pfd,
+                mMmsConfig.getMaxMessageSize(), requestId);
+        if (mStreamingPdu == null) {
+            return null;
+        }
+        GenericPdu pdu = null;
+        try {
+            pdu = mStreamingPdu.parseHeaders(
+                    mMmsConfig.supportMmsContentDisposition());
+        } catch (final Exception e) {
+            LogUtil.w(requestId, "Failed to parse PDU headers");
+        }
+        if (pdu == null) {
+            closeStreamingPdu();
+        }
+        return pdu;
+    }
+
+    private void closeStreamingPdu() {
+        if (mStreamingPdu != null) {
+            mStreamingPdu.close();
+            mStreamingPdu = null;
+        }
+    }
+
     /**
      * Transfer the received response to the caller (for send requests the pdu is small and can
      *  just include bytes as extra in the "returned" intent).
@@ -337,12 +538,59 @@ public class SendRequest extends MmsRequest {
     }
 
     /**
-     * Read the data from the file descriptor if not yet done
+     * Read the data from the file descriptor if not yet done, then check the recipients and
+     * update the destination addresses if needed. If the pdu is not persisted, only its headers
+     * are read and the rest is streamed when sending. Updated addresses are rewritten in the
+     * headers only, in front of the untouched body.
+     * This is done once, retries reuse the prepared pdu.
      * @return whether data successfully read
      */
     @Override
     protected boolean prepareForHttpRequest() {
-        return readPduFromContentUri();
+        if (mPrepared) {
+            // Prepared by a previous attempt, reserve the budget of the pdu held in memory
+            // again, it was released while waiting to retry
+            return mPduData == null || reserveBytes(
+                    mPduData.length + (mPduHeader != null ? mPduHeader.length : 0));
+        }
+        final boolean persistRequired =
+                SmsApplication.shouldWriteMessageForPackage(mCreator, mContext);
+        GenericPdu parsedPdu = null;
+        if (mPduData == null && !persistRequired) {
+            // The whole pdu is not needed for persisting it, so stream it from the file
+            // descriptor and only read its headers
+            parsedPdu = openStreamingPdu();
+        }
+        if (mStreamingPdu == null) {
+            if (!readPduIntoMemory()) {
+                return false;
+            }
+            // Only the headers are needed to check the recipients, but a pdu to persist is
+            // parsed whole once here, and persisted without parsing it again
+            parsedPdu = persistRequired ? parsePdu() : parsePduHeaders();
+        }
+        notifyIfEmergencyContactNoThrow(parsedPdu);
+        if (parsedPdu instanceof SendReq && updateDestinationAddresses((SendReq) parsedPdu)
+                && !spliceDestinationAddresses((SendReq) parsedPdu)) {
+            // The addresses can not be rewritten in place, compose the whole pdu again
+            closeStreamingPdu();
+            if (!readPduIntoMemory()) {
+                return false;
+            }
+            if (persistRequired) {
+                // Parsed whole already, with the addresses updated
+                mPduData = new PduComposer(mContext, (SendReq) parsedPdu).make();
+            } else {
+                parsedPdu = parsePdu();
+                updateDestinationAddress(parsedPdu);
+            }
+        }
+        if (persistRequired) {
+            // The parsed pdu matches mPduData
+            mParsedPdu = parsedPdu;
+        }
+        mPrepared = true;
+        return true;
     }
 
     /**
@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.service;
+
+import android.os.ParcelFileDescriptor;
+
+import com.google.android.mms.pdu.GenericPdu;
+
+import java.io.Closeable;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+
+/**
+ * An outgoing PDU which is streamed from the caller's file descriptor into the HTTP request
+ * body, instead of being read into memory. Only the header region of the PDU is kept in memory,
+ * so that it can be parsed. The rest of the PDU is copied from the file on each attempt.
+ */
+public class StreamingPdu implements MmsHttpClient.RequestBody, Closeable {
+    // How much of the PDU to read to look for the end of the header region
+    private static final int HEADER_READ_SIZE = 16 * 1024;
+
+    // The input stream owning the file descriptor
+    private final FileInputStream mInput;
+    private final FileChannel mChannel;
+    // The header region, as sent
+    private byte[] mHeader;
+    // The offset of the PDU body in the file
+    private final long mBodyOffset;
+    // The size of the PDU file
+    private final long mSize;
+
+    private StreamingPdu(FileInputStream input, byte[] header, long size) {
+        mInput = input;
+        mChannel = input.getChannel();
+        mHeader = header;
+        mBodyOffset = header.length;
+        mSize = size;
+    }
+
+    /**
+     * Open a PDU for streaming. The file descriptor is owned by the returned PDU, or closed if
+     * the PDU can not be streamed.
+     *
+     * @param pfd the file descriptor of the PDU
+     * @param maxSize the maximum size of the PDU
+     * @param requestId the request ID for logging
+     * @return the PDU, or null if it can not be streamed, e.g. it is not a regular file or its
+     *         header region can not be found
+     */
+    public static StreamingPdu open(ParcelFileDescriptor pfd, int maxSize, String requestId) {
+        final FileInputStream input = new ParcelFileDescriptor.AutoCloseInputStream(pfd);
+        boolean opened = false;
+        try {
+            final long size = pfd.getStatSize();
+            if (size < 1 || size > maxSize) {
+                LogUtil.i(requestId, "StreamingPdu: can not stream PDU of size " + size);
+                return null;
+            }
+            final FileChannel channel = input.getChannel();
+            final ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(HEADER_READ_SIZE, size));
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, buffer.position()) < 0) {
+                    break;
+                }
+            }
+            final int headerEnd = PduScanner.findHeaderEnd(buffer.array(), buffer.position());
+            if (headerEnd < 0) {
+                LogUtil.i(requestId, "StreamingPdu: header region not found");
+                return null;
+            }
+            opened = true;
+            return new StreamingPdu(input, Arrays.copyOf(buffer.array(), headerEnd), size);
+        } catch (IOException e) {
+            LogUtil.e(requestId, "StreamingPdu: failed to read PDU", e);
+            return null;
+        } finally {
+            if (!opened) {
+                closeQuietly(input);
+            }
+        }
+    }
+
+    /**
+     * Parse the header region only. The body is parsed as a multipart body without any part,
+     * so that the headers can be examined without reading the rest of the PDU.
+     *
+     * @param supportContentDisposition whether Content-Disposition is supported when parsing
+     * @return the parsed PDU without its body, or null if it can not be parsed
+     */
+    public GenericPdu parseHeaders(boolean supportContentDisposition) {
+        return PduScanner.parseHeaders(mHeader, mHeader.length, supportContentDisposition);
+    }
+
+    /**
+     * @return the header region, as sent
+     */
+    public byte[] getHeader() {
+        return mHeader;
+    }
+
+    /**
+     * Replace the header region sent in front of the body, e.g. with rewritten addresses.
+     * The body is still sent from the file as is.
+     *
+     * @param header the new header region
+     */
+    public void setHeader(byte[] header) {
+        mHeader = header;
+    }
+
+    @Override
+    public long getLength() {
+        return mHeader.length + (mSize - mBodyOffset);
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+        out.write(mHeader);
+        // Use positional transfers, so the PDU can be sent again on retry
+        final WritableByteChannel target = Channels.newChannel(out);
+        long position = mBodyOffset;
+        while (position < mSize) {
+            final long transferred = mChannel.transferTo(position, mSize - position, target);
+            if (transferred <= 0) {
+                throw new IOException("PDU truncated at " + position + " of " + mSize);
+            }
+            position += transferred;
+        }
+    }
+
+    @Override
+    public void close() {
+        closeQuietly(mInput);
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // Ignore
+        }
+    }
+}
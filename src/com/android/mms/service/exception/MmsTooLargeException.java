@@ -0,0 +1,34 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.service.exception;
+
+/**
+ * MMS HTTP response exceeds the maximum message size
+ */
+public class MmsTooLargeException extends MmsHttpException {
+    // The size of the response known when it was aborted
+    private final long mSize;
+
+    public MmsTooLargeException(long size, String message) {
+        super(0/*statusCode*/, message);
+        mSize = size;
+    }
+
+    public long getSize() {
+        return mSize;
+    }
+}